@@ -43,6 +43,12 @@ tasks.named<Test>("test") {
     useJUnitPlatform()
 }
 
+tasks.register<JavaExec>("loadTest") {
+    description = "Runs the headless load generator against a server, e.g. --args=\"-c 1000 -r 2000\"."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.example.LoadGenerator"
+}
+
 tasks.shadowJar {
     // 1. Set the 'Main-Class' for the executable JAR
     manifest {
@@ -7,6 +7,7 @@ import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.ByteBuffer;
 
 public class SimpleAeadService {
@@ -24,8 +25,25 @@ public class SimpleAeadService {
     // AES key size in bits (128, 192, or 256) - 256 matches Fernet's base key size
     private static final int AES_KEY_SIZE = 256; // in bits
 
+    // Cipher.getInstance is expensive and a Cipher is not thread-safe, so every thread keeps its own
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (Exception e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    // Scratch space for the nonce of the current call
+    private static final ThreadLocal<byte[]> NONCES = ThreadLocal.withInitial(() -> new byte[GCM_NONCE_LENGTH]);
+
     private final SecretKey secretKey;
 
+    // Nonce source: a random 4-byte prefix plus a 64-bit counter that starts at a random value.
+    // Within one instance nonces never repeat (2^64 messages); across instances sharing the key a repeat
+    // would need two random 96-bit starting points to land within a few messages of each other.
+    private final int noncePrefix;
+    private final AtomicLong nonceCounter;
+
     /**
      * Creates a SimpleAeadService with a given secret key.
      * @param keyBytes The secret key bytes (e.g., 32 bytes for AES-256).
@@ -36,6 +54,80 @@ public class SimpleAeadService {
             throw new IllegalArgumentException("Key size must be " + (AES_KEY_SIZE / 8) + " bytes for AES-" + AES_KEY_SIZE);
         }
         this.secretKey = new SecretKeySpec(keyBytes, ALGORITHM);
+        SecureRandom random = new SecureRandom();
+        this.noncePrefix = random.nextInt();
+        this.nonceCounter = new AtomicLong(random.nextLong());
+    }
+
+    /**
+     * @param plaintextLength The size of a message.
+     * @return The size of its encrypted form (Nonce + Ciphertext + Tag).
+     */
+    public static int encryptedLength(int plaintextLength) {
+        return GCM_NONCE_LENGTH + plaintextLength + GCM_TAG_LENGTH;
+    }
+
+    /**
+     * @param encryptedLength The size of encrypted data (Nonce + Ciphertext + Tag).
+     * @return The size of the message inside it.
+     */
+    public static int decryptedLength(int encryptedLength) {
+        return encryptedLength - GCM_NONCE_LENGTH - GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Encrypts the remaining bytes of src into a caller-provided buffer, without allocating buffers of its own.
+     * Writes the Nonce followed by the ciphertext and GCM tag.
+     * @param src The message; consumed completely.
+     * @param dst Receives the encrypted data; needs encryptedLength(src.remaining()) bytes of room.
+     * @return The number of bytes written to dst.
+     * @throws Exception If encryption fails or dst is too small.
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws Exception {
+        int length = encryptedLength(src.remaining());
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("Output buffer too small: need " + length + " bytes, have " + dst.remaining());
+        }
+        byte[] nonce = NONCES.get();
+        long counter = nonceCounter.getAndIncrement();
+        nonce[0] = (byte) (noncePrefix >>> 24);
+        nonce[1] = (byte) (noncePrefix >>> 16);
+        nonce[2] = (byte) (noncePrefix >>> 8);
+        nonce[3] = (byte) noncePrefix;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce)); // GCM tag size in bits
+        dst.put(nonce);
+        cipher.doFinal(src, dst); // Ciphertext followed by the GCM tag
+        return length;
+    }
+
+    /**
+     * Decrypts and authenticates Nonce + Ciphertext + Tag into a caller-provided buffer.
+     * Authentication failure (tampering or wrong key) results in an exception.
+     * @param src The encrypted data; consumed completely.
+     * @param dst Receives the message; needs decryptedLength(src.remaining()) bytes of room.
+     * @return The number of bytes written to dst.
+     * @throws Exception If decryption or authentication fails.
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws Exception {
+        if (src.remaining() < GCM_NONCE_LENGTH + GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("Encrypted data is too short.");
+        }
+        int length = decryptedLength(src.remaining());
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("Output buffer too small: need " + length + " bytes, have " + dst.remaining());
+        }
+        byte[] nonce = NONCES.get();
+        src.get(nonce);
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+        // If authentication fails, doFinal will throw AEADBadTagException
+        return cipher.doFinal(src, dst);
     }
 
     /**
@@ -51,28 +143,16 @@ public class SimpleAeadService {
 
     /**
      * Encrypts a message using AES/GCM.
+     * Uses the same per-thread Cipher and nonce source as encrypt(ByteBuffer, ByteBuffer).
      * The output is a byte array containing the Nonce followed by the ciphertext and GCM tag.
      * @param message The message to encrypt.
      * @return Encrypted data (Nonce + Ciphertext + Tag).
      * @throws Exception If encryption fails.
      */
     public byte[] encrypt(byte[] message) throws Exception {
-        // Generate a random Nonce (IV)
-        byte[] nonce = new byte[GCM_NONCE_LENGTH];
-        new SecureRandom().nextBytes(nonce); // Cryptographically strong random bytes
-
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce); // GCM tag size in bits
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
-
-        // Encrypt the message
-        byte[] ciphertext = cipher.doFinal(message);
-
-        // Combine Nonce and ciphertext+tag
-        ByteBuffer byteBuffer = ByteBuffer.allocate(nonce.length + ciphertext.length);
-        byteBuffer.put(nonce);
-        byteBuffer.put(ciphertext); // This includes the GCM tag at the end
-        return byteBuffer.array();
+        byte[] encrypted = new byte[encryptedLength(message.length)];
+        encrypt(ByteBuffer.wrap(message), ByteBuffer.wrap(encrypted));
+        return encrypted;
     }
 
     /**
@@ -87,21 +167,9 @@ public class SimpleAeadService {
         if (encryptedData.length < GCM_NONCE_LENGTH + GCM_TAG_LENGTH) {
             throw new IllegalArgumentException("Encrypted data is too short.");
         }
-
-        // Extract Nonce and ciphertext+tag
-        ByteBuffer byteBuffer = ByteBuffer.wrap(encryptedData);
-        byte[] nonce = new byte[GCM_NONCE_LENGTH];
-        byteBuffer.get(nonce);
-        byte[] ciphertextWithTag = new byte[byteBuffer.remaining()];
-        byteBuffer.get(ciphertextWithTag);
-
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
-
-        // Decrypt and authenticate
-        // If authentication fails, doFinal will throw BadPaddingException (or AEADBadTagException)
-        return cipher.doFinal(ciphertextWithTag);
+        byte[] message = new byte[decryptedLength(encryptedData.length)];
+        decrypt(ByteBuffer.wrap(encryptedData), ByteBuffer.wrap(message));
+        return message;
     }
 
     // --- Helper methods for Base64 encoding/decoding for easier transport/storage ---
@@ -7,25 +7,38 @@ import org.example.CoolTCPClient;
 import org.example.NameGenerator;
 
 import java.awt.FlowLayout;
+import java.lang.reflect.InvocationTargetException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BoxLayout;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 import org.apache.commons.cli.*; // Import necessary classes
 
 public class ChatApp {
     private static CoolTCPClient client;
 
+    // Messages read from the server but not shown yet. The reader thread adds, the EDT drains.
+    private static final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    // Set while a delivery to the EDT is queued, so a burst costs one invokeLater and one append
+    private static final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
     public static void main(String[] args) throws InterruptedException {
         Options options = new Options();
 
         String server = "localhost"; // Default server address
         String port = "12345"; // Default server port
         Boolean isUsingKey = false; // Flag to check if a key is provided
+        byte[] key = null;
 
         // Add a help option (-h or --help)
         Option helpOption = new Option("h", "help", false, "Print this help message");
@@ -34,12 +47,16 @@ public class ChatApp {
         Option nameOption = new Option("n", "name", true, "Your name (default: generated name)");
         Option skipHandshakeOption = new Option("sh", "skip-handshake", false, "Skip the handshake process");
         Option keyOption = new Option("k", "key", true, "Encryption key in Base64 format (optional)");
+        Option compressOption = new Option("z", "compress", false, "Compress traffic with the server (not combined with -k)");
+        Option scrollbackOption = new Option("b", "scrollback", true, "Messages kept in the window (default: 5000)");
         options.addOption(serverOption);
         options.addOption(portOption);
         options.addOption(helpOption);
         options.addOption(nameOption);
         options.addOption(skipHandshakeOption);
         options.addOption(keyOption);
+        options.addOption(compressOption);
+        options.addOption(scrollbackOption);
         // Step 3: Create a parser
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null; // Object to hold the parsed command line
@@ -69,6 +86,12 @@ public class ChatApp {
             }
             if (cmd.hasOption("k")) {
                 isUsingKey = true;
+                try {
+                    key = Base64.getDecoder().decode(cmd.getOptionValue("k"));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid Base64 key: " + e.getMessage());
+                    System.exit(1);
+                }
             }
         }
         NameGenerator nameGenerator = new NameGenerator();
@@ -92,34 +115,65 @@ public class ChatApp {
         } else {
             client = new CoolTCPClient();
         }
+        if (cmd.hasOption("z") && !isUsingKey) {
+            client.RequestCompression();
+        }
         if (cmd.hasOption("sh")) {
             // do nothing, skip handshake
         } else {
-            if (isUsingKey) {
-                // do handshake
-                client.SendMessage("handshake", cmd.getOptionValue("k").getBytes());
-                Thread.sleep(1000); // Wait for the server to process the handshake
-                client.SendMessage("name " + name, cmd.getOptionValue("k").getBytes());
-            } else {
-                // do handshake
-                client.SendMessage("handshake");
-                Thread.sleep(1000); // Wait for the server to process the handshake
-                client.SendMessage("name " + name);
+            // do handshake; the client repeats it by itself after reconnecting
+            client.Handshake(name, key);
+        }
+        int scrollback = 5000;
+        try {
+            scrollback = Integer.parseInt(cmd.getOptionValue("b", "5000"));
+            if (scrollback <= 0) {
+                throw new IllegalArgumentException("must be positive: " + scrollback);
             }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid scrollback: " + e.getMessage());
+            System.exit(1);
+        }
+        final byte[] messageKey = key;
+        final int messageScrollback = scrollback;
+        // Swing components are built and touched only on the EDT
+        MessageView[] view = new MessageView[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> view[0] = createWindow(messageKey, messageScrollback));
+        } catch (InvocationTargetException e) {
+            System.err.println("Could not open the chat window: " + e.getCause());
+            System.exit(1);
         }
+
+        // The client's reader blocks in the socket read instead of polling, so a message shows up as soon
+        // as it arrives, and it reconnects by itself when the connection drops
+        client.StartReceiving(new CoolTCPClient.Listener() {
+            @Override
+            public void onMessage(String message) {
+                enqueue(message, view[0]);
+            }
+
+            @Override
+            public void onConnectionChanged(boolean connected, String detail) {
+                enqueue(detail, view[0]);
+            }
+        });
+    }
+
+    // Builds and shows the chat window; runs on the EDT
+    private static MessageView createWindow(byte[] messageKey, int scrollback) {
         JFrame frame = new JFrame("Chat Application");
         JPanel titlePanel = new JPanel();
         JPanel contentPanel = new JPanel();
         JPanel inputPanel = new JPanel();
         JLabel titleLabel = new JLabel("Welcome to the Chat Application!", JLabel.CENTER);
         javax.swing.JTextField inpTextField = new javax.swing.JTextField(30);
-        JTextArea textArea = new JTextArea(10, 30);
-        textArea.setEditable(false);
+        MessageView messageView = new MessageView(scrollback, 360, 10);
         titlePanel.setLayout(new BoxLayout(titlePanel, BoxLayout.Y_AXIS));
         titlePanel.add(titleLabel);
         titleLabel.setAlignmentX(JLabel.CENTER_ALIGNMENT);
         contentPanel.setLayout(new BoxLayout(contentPanel, BoxLayout.Y_AXIS));
-        contentPanel.add(textArea);
+        contentPanel.add(messageView);
         inputPanel.setLayout(new BoxLayout(inputPanel, BoxLayout.X_AXIS));
         inputPanel.add(inpTextField);
         frame.setLayout(new FlowLayout());
@@ -133,19 +187,34 @@ public class ChatApp {
 
         inpTextField.addActionListener(e -> {
             String message = inpTextField.getText();
-            client.SendMessage(message);
+            if (messageKey != null) {
+                client.SendMessage(message, messageKey);
+            } else {
+                client.SendMessage(message);
+            }
             inpTextField.setText("");
         });
-        while (true) {
-            String message = client.recieveMessage();
-            if (message != null && !message.isEmpty()) {
-                textArea.append(message);
-            }
-            try {
-                Thread.sleep(100); // Polling interval
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        return messageView;
+    }
+
+    private static void enqueue(String message, MessageView view) {
+        pendingMessages.add(message);
+        if (deliveryScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> deliverPending(view));
+        }
+    }
+
+    // Runs on the EDT: everything that arrived since the last delivery goes in with one append
+    private static void deliverPending(MessageView view) {
+        // Cleared before draining, so a message added during the drain schedules the next delivery
+        deliveryScheduled.set(false);
+        List<String> batch = new ArrayList<>();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            batch.add(message);
+        }
+        if (!batch.isEmpty()) {
+            view.append(batch);
         }
     }
 }
@@ -1,90 +1,550 @@
 package org.example;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import ai.gemini.SimpleAeadService;
 
+/**
+ * Connection to the chat server.
+ *
+ * Sending never touches the network on the caller's thread: SendMessage() only encodes the frame and
+ * queues it, and a writer thread sends everything queued with one write. Receiving works two ways:
+ * call recieveMessage() from a thread of your own, or call StartReceiving() to get messages through a
+ * Listener. In the second mode a lost connection is re-established automatically, with jittered
+ * exponential backoff, and the handshake and compression request are repeated.
+ *
+ * The handshake is a single HELLO frame carrying the name, protocol version and capabilities, which the
+ * server answers with a WELCOME that accepts or rejects it. Messages can be queued right behind the
+ * HELLO, so a client is chatting one round trip after connecting. If the name is taken, the client
+ * tries again with a fresh NameGenerator name; the name the server granted is kept for reconnects.
+ *
+ * The HELLO asks for heartbeats. If the WELCOME says the server sends them, the reader PINGs a server
+ * that has been quiet for a heartbeat interval and treats one that stays quiet for another as gone,
+ * instead of waiting for TCP to notice. The server's PINGs are answered with PONGs, so an idle client
+ * isn't closed as dead.
+ */
 public class CoolTCPClient {
+    private static final int MAX_QUEUED_FRAMES = 10_000; // Held while disconnected
+    private static final int WRITE_BATCH = 64; // Frames per write
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /**
+     * Receives what the server sends. Called on the client's reader thread, so hand work for a UI over
+     * to the UI thread.
+     */
+    public interface Listener {
+        void onMessage(String message);
+
+        /**
+         * @param connected true once a connection (re)opened, false when it was lost.
+         * @param detail What happened, for showing to the user.
+         */
+        default void onConnectionChanged(boolean connected, String detail) {
+        }
+    }
+
     private String SERVER_ADDRESS = "localhost"; // Default server address
     private int SERVER_PORT = 12345; // Default server port
-    private Socket SOCKET;
+    private volatile Socket SOCKET;
+    private ReadableByteChannel inputChannel;
+    private FrameDecoder decoder = new FrameDecoder();
+    // Built once per key instead of once per message
+    private SimpleAeadService aeadService;
+    private byte[] aeadKey;
+    // Compression: the decompressor exists once we asked, the compressor once the server agreed
+    private volatile FrameDecompressor decompressor;
+    private volatile FrameCompressor compressor;
+    // Log every message sent and received; turned off by headless users such as LoadGenerator
+    private final boolean verbose;
+
+    // Frames waiting for the writer; SOCKET only changes while holding sendLock
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Condition sendable = sendLock.newCondition();
+    private final ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // What to repeat after reconnecting; only used once StartReceiving() was called
+    private volatile Listener listener;
+    private Thread receiver;
+    private volatile String handshakeName;
+    private volatile byte[] handshakeKey;
+    private volatile boolean welcomed; // The server accepted our HELLO on this connection
+    private volatile int heartbeatMillis; // From the WELCOME, 0 = the server doesn't ping
+    private boolean pingOutstanding; // We PINGed and haven't heard back yet; reader only
+
     public CoolTCPClient() {
-        try {
-            SOCKET = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            System.out.println("Connected to server at " + SERVER_ADDRESS + ":" + SERVER_PORT);
-            // Additional code to handle communication with the server can be added here
-        } catch (Exception e) {
-            System.err.println("Error connecting to server: " + e.getMessage());
-        }
+        this.verbose = true;
+        this.writer = startWriter();
+        connect();
     }
     public CoolTCPClient(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, true);
+    }
+    public CoolTCPClient(String serverAddress, int serverPort, boolean verbose) {
         this.SERVER_ADDRESS = serverAddress;
         this.SERVER_PORT = serverPort;
+        this.verbose = verbose;
+        this.writer = startWriter();
+        connect();
+    }
+    private void connect() {
         try {
-            SOCKET = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            System.out.println("Connected to server at " + SERVER_ADDRESS + ":" + SERVER_PORT);
-        } catch (Exception e) {
+            openSocket(new ByteBuffer[0]);
+        } catch (IOException e) {
             System.err.println("Error connecting to server: " + e.getMessage());
         }
     }
+    // greeting: frames the new session has to start with, sent before anything already queued
+    private void openSocket(ByteBuffer[] greeting) throws IOException {
+        Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        socket.setTcpNoDelay(true); // Chat lines are small and interactive, don't let Nagle hold them back
+        // A new server session: fresh decoder and compression state, negotiated again if we asked before
+        decoder = new FrameDecoder();
+        inputChannel = null;
+        welcomed = false;
+        heartbeatMillis = 0;
+        pingOutstanding = false;
+        if (decompressor != null) {
+            decompressor = new FrameDecompressor();
+        }
+        sendLock.lock();
+        try {
+            compressor = null; // Dropped, not ended: the writer may still hold it for a failed batch
+            for (int i = greeting.length - 1; i >= 0; i--) {
+                sendQueue.addFirst(greeting[i]);
+            }
+            SOCKET = socket;
+            sendable.signal();
+        } finally {
+            sendLock.unlock();
+        }
+        if (verbose) {
+            System.out.println("Connected to server at " + SERVER_ADDRESS + ":" + SERVER_PORT);
+        }
+    }
+    private Thread startWriter() {
+        // Virtual: it spends its life waiting for the queue or the socket, neither of which pins a carrier
+        return Thread.ofVirtual().name("chat-writer").start(this::writeLoop);
+    }
     public Socket getSocket() {
         return SOCKET;
     }
+    /**
+     * @return true once the server accepted the handshake on the current connection.
+     */
+    public boolean isWelcomed() {
+        return welcomed;
+    }
+
+    /**
+     * @return How long the reader waits for the server before PINGing it, in milliseconds, as the WELCOME
+     *         announced it; 0 if the server doesn't send heartbeats.
+     */
+    public int getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    /**
+     * Starts a reader thread that passes every message to the listener and reconnects when the connection
+     * drops, or couldn't be opened in the first place. Don't call recieveMessage() after this.
+     * @param listener Gets the messages and connection changes.
+     */
+    public synchronized void StartReceiving(Listener listener) {
+        if (receiver != null) {
+            throw new IllegalStateException("Already receiving");
+        }
+        this.listener = listener;
+        if (SOCKET != null && handshakeName == null && decompressor != null) {
+            SendMessage("compress"); // Connected without a handshake, so no HELLO carries the request
+        }
+        // A platform thread: the blocking channel read is synchronized, which pins virtual threads before JDK 24
+        receiver = Thread.ofPlatform().name("chat-reader").daemon().start(this::receiveLoop);
+    }
+
+    /**
+     * Introduces us to the server with a HELLO, and again after every reconnect. Messages sent right
+     * after this go out behind the HELLO, no need to wait for the WELCOME.
+     * @param name The name to use.
+     */
+    public void Handshake(String name) {
+        Handshake(name, null);
+    }
+    /**
+     * @param name The name to use.
+     * @param key The key to encrypt the handshake with, or null.
+     */
+    public void Handshake(String name, byte[] key) {
+        handshakeName = name;
+        handshakeKey = key == null ? null : key.clone();
+        if (SOCKET == null) {
+            return; // Sent as soon as StartReceiving() gets a connection
+        }
+        for (ByteBuffer frame : handshakeFrames()) {
+            enqueue(frame);
+        }
+    }
+    // What a session starts with: the HELLO, which also asks for compression if we want it. Without a
+    // handshake, compression is asked for with the older "compress" message instead.
+    private ByteBuffer[] handshakeFrames() {
+        String name = handshakeName;
+        if (name == null) {
+            return decompressor != null ? new ByteBuffer[] {FrameEncoder.encodeText("compress")} : new ByteBuffer[0];
+        }
+        byte[] key = handshakeKey;
+        List<String> capabilities = new ArrayList<>(3);
+        capabilities.add(Hello.CAP_HEARTBEAT); // PINGs are answered by the reader
+        if (decompressor != null && key == null) {
+            capabilities.add(Hello.CAP_COMPRESS); // Not combined with encryption
+        }
+        if (key != null) {
+            capabilities.add(Hello.CAP_ENCRYPT);
+        }
+        byte[] hello = Hello.hello(name, capabilities).getBytes(StandardCharsets.UTF_8);
+        return new ByteBuffer[] {key != null
+                ? encryptedFrame(Frame.TYPE_HELLO, hello, key)
+                : FrameEncoder.encode(Frame.TYPE_HELLO, (byte) 0, hello)};
+    }
+
     public void SendMessage(String message) {
-        try {
-            if (SOCKET != null && !SOCKET.isClosed()) {
-                SOCKET.getOutputStream().write(message.getBytes());
-                SOCKET.getOutputStream().flush();
-                System.out.println("Message sent: " + message);
-            } else {
-                System.err.println("Socket is not connected.");
-            }
-        } catch (Exception e) {
-            System.err.println("Error sending message: " + e.getMessage());
+        if (enqueue(FrameEncoder.encodeText(message)) && verbose) {
+            System.out.println("Message sent: " + message);
         }
     }
     public void SendMessage(String message, byte[] key) {
         try {
-            if (SOCKET != null && !SOCKET.isClosed()) {
-                SimpleAeadService aeadService = new SimpleAeadService(key);
-                byte[] encryptedMessage = aeadService.encrypt(message.getBytes());
-                SOCKET.getOutputStream().write(encryptedMessage);
-                SOCKET.getOutputStream().flush();
+            if (enqueue(encryptedFrame(message, key)) && verbose) {
                 System.out.println("Encrypted message sent.");
-            } else {
-                System.err.println("Socket is not connected.");
             }
         } catch (Exception e) {
             System.err.println("Error sending encrypted message: " + e.getMessage());
         }
     }
+    private ByteBuffer encryptedFrame(String message, byte[] key) {
+        return encryptedFrame(Frame.TYPE_TEXT, message.getBytes(StandardCharsets.UTF_8), key);
+    }
+    private ByteBuffer encryptedFrame(byte type, byte[] plaintext, byte[] key) {
+        SimpleAeadService aead = aeadFor(key);
+        // Encrypt straight into the frame instead of going through an intermediate array
+        int payloadLength = SimpleAeadService.encryptedLength(plaintext.length);
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_LENGTH + payloadLength);
+        frame.putInt(payloadLength).put(type).put(Frame.FLAG_ENCRYPTED);
+        try {
+            aead.encrypt(ByteBuffer.wrap(plaintext), frame);
+        } catch (Exception e) {
+            // Only a bad key gets here, and then nothing can be sent at all
+            throw new IllegalArgumentException("Encryption failed: " + e.getMessage(), e);
+        }
+        return frame.flip();
+    }
+    private synchronized SimpleAeadService aeadFor(byte[] key) {
+        if (aeadService == null || !Arrays.equals(aeadKey, key)) {
+            aeadService = new SimpleAeadService(key);
+            aeadKey = key.clone();
+        }
+        return aeadService;
+    }
+    private synchronized SimpleAeadService currentAead() {
+        return aeadService;
+    }
+
+    // Hands a frame to the writer without waiting for the network. While disconnected, frames are kept for
+    // the next connection if the client reconnects by itself; otherwise there is nothing to send them to.
+    private boolean enqueue(ByteBuffer frame) {
+        sendLock.lock();
+        try {
+            if (closed || (SOCKET == null && listener == null)) {
+                System.err.println("Socket is not connected.");
+                return false;
+            }
+            if (sendQueue.size() >= MAX_QUEUED_FRAMES) {
+                System.err.println("Send queue full, message dropped.");
+                return false;
+            }
+            sendQueue.add(frame);
+            sendable.signal();
+            return true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Runs on the writer thread: sends everything queued in one write, until the client is closed
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+        FrameCompressor lastCompressor = null;
+        while (true) {
+            Socket socket;
+            int count = 0;
+            sendLock.lock();
+            try {
+                while (!closed && (sendQueue.isEmpty() || SOCKET == null || SOCKET.isClosed())) {
+                    sendable.await();
+                }
+                if (closed) {
+                    break;
+                }
+                while (count < batch.length && !sendQueue.isEmpty()) {
+                    batch[count++] = sendQueue.poll();
+                }
+                socket = SOCKET;
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                sendLock.unlock();
+            }
+            try {
+                // Synchronized with the reader, which swaps in a compressor when the server agrees
+                FrameCompressor compressor = this.compressor;
+                if (compressor != null) {
+                    lastCompressor = compressor;
+                    // The whole batch becomes one compressed buffer
+                    batch[0] = compressor.compress(batch, 0, count);
+                    Arrays.fill(batch, 1, count, null);
+                    count = 1;
+                }
+                out = gather(batch, count, out);
+                OutputStream stream = socket.getOutputStream();
+                stream.write(out.array(), 0, out.limit());
+                stream.flush();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error sending message: " + e.getMessage());
+                    // Closing makes the reader notice, which reconnects if it was asked to
+                    closeQuietly(socket);
+                }
+            }
+            Arrays.fill(batch, 0, count, null);
+        }
+        if (lastCompressor != null) {
+            lastCompressor.end();
+        }
+    }
+    // Copies the frames into one buffer, grown if needed, so a batch costs a single write
+    private static ByteBuffer gather(ByteBuffer[] frames, int count, ByteBuffer out) {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += frames[i].remaining();
+        }
+        if (out.capacity() < length) {
+            out = ByteBuffer.allocate(Math.max(length, out.capacity() * 2));
+        }
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            out.put(frames[i].duplicate());
+        }
+        return out.flip();
+    }
+
+    // Runs on the reader thread started by StartReceiving()
+    private void receiveLoop() {
+        Listener listener = this.listener;
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        if (SOCKET != null) {
+            listener.onConnectionChanged(true, "Connected to " + SERVER_ADDRESS + ":" + SERVER_PORT);
+        }
+        while (!closed) {
+            Socket socket = SOCKET;
+            if (socket != null && !socket.isClosed()) {
+                String message = recieveMessage();
+                if (!message.isEmpty()) {
+                    listener.onMessage(message);
+                }
+                backoffMillis = INITIAL_BACKOFF_MILLIS; // Data got through, so the next drop starts over
+                continue;
+            }
+            // Jittered so that clients dropped together by a server restart don't all come back at once
+            long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            listener.onConnectionChanged(false, "Not connected, trying again in " + delay + " ms...");
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                return; // CloseConnection()
+            }
+            try {
+                openSocket(handshakeFrames());
+                listener.onConnectionChanged(true, "Reconnected to " + SERVER_ADDRESS + ":" + SERVER_PORT);
+            } catch (IOException e) {
+                backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+            }
+        }
+    }
+
+    // Asks the server to compress what it sends. Its answer is the first compressed frame, and from then on
+    // our own messages are compressed too. Not combined with encryption. Call it before Handshake(), so the
+    // request rides in the HELLO.
+    public void RequestCompression() {
+        if (decompressor == null) {
+            decompressor = new FrameDecompressor();
+            if (SOCKET != null && handshakeName != null) {
+                SendMessage("compress"); // The HELLO already went out without it
+            }
+        }
+    }
     public void CloseConnection() {
+        sendLock.lock();
         try {
-            if (SOCKET != null && !SOCKET.isClosed()) {
-                SOCKET.close();
+            closed = true;
+            sendable.signal(); // The writer ends the compressor on its way out
+        } finally {
+            sendLock.unlock();
+        }
+        Thread receiver;
+        synchronized (this) {
+            receiver = this.receiver;
+        }
+        if (receiver != null) {
+            receiver.interrupt(); // In case it is waiting to reconnect
+        }
+        Socket socket = SOCKET;
+        if (socket != null && !socket.isClosed()) {
+            closeQuietly(socket);
+            if (verbose) {
                 System.out.println("Connection closed.");
             }
-        } catch (Exception e) {
+        }
+    }
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
             System.err.println("Error closing connection: " + e.getMessage());
         }
     }
+    // Blocks until one complete frame has arrived and returns its text
     public String recieveMessage() {
         StringBuilder message = new StringBuilder();
+        Socket socket = SOCKET;
         try {
-            if (SOCKET != null && !SOCKET.isClosed()) {
-                byte[] buffer = new byte[1024];
-                int bytesRead = SOCKET.getInputStream().read(buffer);
-                if (bytesRead > 0) {
-                    message.append(new String(buffer, 0, bytesRead));
+            if (socket != null && !socket.isClosed()) {
+                if (inputChannel == null) {
+                    inputChannel = Channels.newChannel(socket.getInputStream());
+                }
+                Frame frame;
+                while ((frame = decoder.next()) == null) {
+                    int read;
+                    try {
+                        read = decoder.readFrom(inputChannel);
+                    } catch (SocketTimeoutException e) {
+                        if (heartbeatMillis == 0) {
+                            throw e; // A timeout the caller set
+                        }
+                        if (!pingServer(socket)) {
+                            return message.toString();
+                        }
+                        continue;
+                    }
+                    if (read == -1) {
+                        if (verbose) {
+                            System.out.println("No message received.");
+                        }
+                        socket.close();
+                        return message.toString();
+                    }
+                }
+                pingOutstanding = false;
+                String text = payloadText(frame); // Also for PINGs, a compressed one still moves the inflater along
+                if (frame.getType() == Frame.TYPE_PING) {
+                    enqueue(FrameEncoder.encode(Frame.TYPE_PONG, (byte) 0, new byte[0]));
+                } else if (text != null && frame.getType() == Frame.TYPE_WELCOME) {
+                    message.append(onWelcome(text, socket));
+                } else if (text != null && frame.getType() == Frame.TYPE_TEXT) {
+                    message.append(text);
+                }
+                if (verbose && message.length() > 0) {
                     System.out.println("Message received: " + message);
-                } else {
-                    System.out.println("No message received.");
                 }
             } else {
                 System.err.println("Socket is not connected.");
             }
+        } catch (IOException e) {
+            // Reading from a socket we closed ourselves is how a reader thread finds out it should stop
+            if (!socket.isClosed()) {
+                System.err.println("Error receiving message: " + e.getMessage());
+                closeQuietly(socket); // Broken either way; lets StartReceiving() reconnect
+            }
         } catch (Exception e) {
             System.err.println("Error receiving message: " + e.getMessage());
         }
         return message.toString();
     }
+    // The frame's text, inflated or decrypted as its flags say; null if we can't read it
+    private String payloadText(Frame frame) throws Exception {
+        FrameDecompressor decompressor = this.decompressor;
+        if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            if (decompressor == null) {
+                return null;
+            }
+            String text = decompressor.inflateText(frame.getPayload());
+            if (compressor == null) {
+                compressor = new FrameCompressor(); // The server agreed to compression
+            }
+            return text;
+        }
+        if (!frame.hasFlag(Frame.FLAG_ENCRYPTED)) {
+            return frame.text();
+        }
+        // The server encrypts for clients that sent it encrypted frames, with the key they used
+        SimpleAeadService aead = currentAead();
+        return aead != null ? new String(aead.decrypt(frame.payloadBytes()), StandardCharsets.UTF_8) : null;
+    }
+    // The server has been quiet for a heartbeat interval: PING it, or give up if it didn't answer the last PING.
+    // Returns false if the connection was closed.
+    private boolean pingServer(Socket socket) {
+        if (pingOutstanding) {
+            System.err.println("Server stopped answering, closing the connection.");
+            closeQuietly(socket); // Lets StartReceiving() reconnect
+            return false;
+        }
+        pingOutstanding = true;
+        enqueue(FrameEncoder.encode(Frame.TYPE_PING, (byte) 0, new byte[0]));
+        return true;
+    }
+    // The server's answer to our HELLO, turned into a line to show
+    private String onWelcome(String text, Socket socket) throws IOException {
+        Map<String, String> fields = Hello.parse(text);
+        if (!"accept".equals(fields.get("status"))) {
+            if (Hello.CONFLICT_NAME.equals(fields.get("conflict")) && handshakeName != null) {
+                String taken = handshakeName;
+                handshakeName = new NameGenerator().generateName();
+                for (ByteBuffer frame : handshakeFrames()) {
+                    enqueue(frame);
+                }
+                return "The name " + taken + " is already taken, trying " + handshakeName;
+            }
+            return "Handshake rejected: " + fields.getOrDefault("reason", "no reason given");
+        }
+        welcomed = true;
+        String grantedName = fields.get("name");
+        if (grantedName != null && handshakeName != null) {
+            handshakeName = grantedName; // Maybe renamed by the server; ask for the same name after a reconnect
+        }
+        try {
+            heartbeatMillis = Integer.parseInt(fields.getOrDefault("heartbeat", "0")) * 1000;
+        } catch (NumberFormatException e) {
+            heartbeatMillis = 0;
+        }
+        if (heartbeatMillis > 0) {
+            socket.setSoTimeout(heartbeatMillis);
+        }
+        List<String> granted = Hello.capabilities(fields);
+        return "Connected as " + fields.get("name") + (granted.isEmpty() ? "" : " (" + String.join(", ", granted) + ")");
+    }
 }
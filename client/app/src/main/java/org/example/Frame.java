@@ -0,0 +1,85 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One protocol frame as exchanged between CoolTCPClient and Server.
+ *
+ * Wire format (big endian):
+ * <pre>
+ * +----------------+--------+--------+-----------------+
+ * | length (int32) | type   | flags  | payload         |
+ * | payload bytes  | (int8) | (int8) | (length bytes)  |
+ * +----------------+--------+--------+-----------------+
+ * </pre>
+ * The payload of a frame returned by {@link FrameDecoder} is a view into the decoder's buffer,
+ * not a copy, so it is only valid until the decoder reads again.
+ */
+public final class Frame {
+
+    public static final int HEADER_LENGTH = 6;
+    // Anything bigger is treated as a protocol error instead of being buffered
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    // --- Frame types ---
+    public static final byte TYPE_TEXT = 1;
+    public static final byte TYPE_HELLO = 2; // Client's handshake, see Hello
+    public static final byte TYPE_WELCOME = 3; // Server's answer to a HELLO
+    public static final byte TYPE_PING = 4; // Are you still there? Empty payload, either side may send it
+    public static final byte TYPE_PONG = 5; // Answer to a PING
+    public static final byte TYPE_RELAY = 6; // A batch of events between cluster nodes, never sent to clients
+
+    // --- Flags ---
+    public static final byte FLAG_ENCRYPTED = 0x01; // Payload is SimpleAeadService output (Nonce + Ciphertext + Tag)
+    public static final byte FLAG_COMPRESSED = 0x02; // Payload is the next piece of the sender's deflate stream (FrameCompressor)
+
+    private final byte type;
+    private final byte flags;
+    private final ByteBuffer payload;
+
+    public Frame(byte type, byte flags, ByteBuffer payload) {
+        this.type = type;
+        this.flags = flags;
+        this.payload = payload;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return The payload, positioned at its first byte. Read it with absolute gets or duplicate() it to keep the frame reusable.
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return A copy of the payload bytes.
+     */
+    public byte[] payloadBytes() {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes the payload as UTF-8 text.
+     * @return The payload as a String.
+     */
+    public String text() {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+}
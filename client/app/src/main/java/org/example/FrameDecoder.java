@@ -0,0 +1,116 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental frame decoder for one connection.
+ *
+ * Bytes are read straight into the decoder's buffer and frames are handed out as slices of it, so
+ * decoding never copies a payload. Partial frames stay in the buffer until the rest arrives; a frame
+ * larger than the buffer grows it (up to Frame.MAX_PAYLOAD_LENGTH), and so does feeding more complete
+ * frames than fit before they are taken with next().
+ *
+ * Typical use:
+ * <pre>
+ * if (decoder.readFrom(channel) == -1) { ...closed... }
+ * Frame frame;
+ * while ((frame = decoder.next()) != null) { ...handle frame... }
+ * </pre>
+ */
+public class FrameDecoder {
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private ByteBuffer buffer; // Kept in write mode: [0, readIndex) consumed, [readIndex, position) pending
+    private int readIndex = 0;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(Math.max(initialCapacity, Frame.HEADER_LENGTH));
+    }
+
+    /**
+     * Reads whatever the channel has into the buffer.
+     * Frames returned by earlier calls to next() are invalid afterwards.
+     * @param channel The channel to read from.
+     * @return The number of bytes read, or -1 at end of stream.
+     * @throws IOException If reading fails.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        return channel.read(buffer);
+    }
+
+    /**
+     * Copies bytes that were read elsewhere into the decoder.
+     * Frames returned by earlier calls to next() are invalid afterwards.
+     * @param src The bytes to add; fully consumed.
+     * @throws ProtocolException If the pending frame has an invalid length.
+     */
+    public void feed(ByteBuffer src) throws ProtocolException {
+        while (src.hasRemaining()) {
+            makeRoom();
+            int n = Math.min(src.remaining(), buffer.remaining());
+            buffer.put(src.slice(src.position(), n));
+            src.position(src.position() + n);
+        }
+    }
+
+    /**
+     * Decodes the next complete frame.
+     * @return The frame, or null if more bytes are needed.
+     * @throws ProtocolException If the peer sent an invalid length.
+     */
+    public Frame next() throws ProtocolException {
+        int available = buffer.position() - readIndex;
+        if (available < Frame.HEADER_LENGTH) {
+            return null;
+        }
+        int length = buffer.getInt(readIndex);
+        if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (available < Frame.HEADER_LENGTH + length) {
+            return null;
+        }
+        byte type = buffer.get(readIndex + 4);
+        byte flags = buffer.get(readIndex + 5);
+        ByteBuffer payload = buffer.slice(readIndex + Frame.HEADER_LENGTH, length);
+        readIndex += Frame.HEADER_LENGTH + length;
+        return new Frame(type, flags, payload);
+    }
+
+    // Drops consumed bytes and makes sure there is space for at least the rest of the current frame
+    private void makeRoom() throws ProtocolException {
+        if (readIndex == buffer.position()) {
+            buffer.clear();
+            readIndex = 0;
+        }
+
+        int pending = buffer.position() - readIndex;
+        int needed = pending >= Frame.HEADER_LENGTH ? Frame.HEADER_LENGTH + buffer.getInt(readIndex) : Frame.HEADER_LENGTH;
+        if (needed < Frame.HEADER_LENGTH || needed - Frame.HEADER_LENGTH > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + (needed - Frame.HEADER_LENGTH));
+        }
+
+        if (buffer.hasRemaining() && needed <= buffer.capacity() - readIndex) {
+            return; // The current frame fits behind readIndex, keep filling
+        }
+        if (needed <= buffer.capacity() && readIndex > 0) {
+            buffer.flip().position(readIndex);
+            buffer.compact();
+        } else {
+            // Either the current frame is bigger than the buffer, or the buffer is full of complete frames
+            // that haven't been taken with next() yet and compacting would free nothing
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+            bigger.put(buffer.flip().position(readIndex));
+            buffer = bigger;
+        }
+        readIndex = 0;
+    }
+}
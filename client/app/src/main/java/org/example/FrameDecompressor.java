@@ -0,0 +1,58 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates FLAG_COMPRESSED frames from one connection. The counterpart of the peer's FrameCompressor:
+ * the Inflater lives as long as the connection, so frames must be inflated in the order they arrived.
+ *
+ * Not thread-safe. Call end() when the connection closes.
+ */
+public final class FrameDecompressor {
+    private final Inflater inflater = new Inflater(true);
+    private byte[] out = new byte[8 * 1024]; // Reused for every call
+
+    public FrameDecompressor() {
+        inflater.setDictionary(FrameCompressor.DICTIONARY);
+    }
+
+    /**
+     * Inflates the payload of a compressed text frame.
+     * @param payload The compressed payload; its position is not changed.
+     * @return The message.
+     * @throws DataFormatException If the payload is not part of the peer's deflate stream, or inflates
+     *                             to more than Frame.MAX_PAYLOAD_LENGTH bytes.
+     */
+    public String inflateText(ByteBuffer payload) throws DataFormatException {
+        inflater.setInput(payload.duplicate());
+        int length = 0;
+        while (true) {
+            if (length == out.length) {
+                if (out.length >= Frame.MAX_PAYLOAD_LENGTH) {
+                    throw new DataFormatException("Compressed frame inflates to more than " + Frame.MAX_PAYLOAD_LENGTH + " bytes");
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int inflated = inflater.inflate(out, length, out.length - length);
+            length += inflated;
+            if (inflated == 0 && (inflater.needsInput() || inflater.finished())) {
+                break;
+            }
+            if (inflater.needsDictionary()) {
+                throw new DataFormatException("Unexpected dictionary request");
+            }
+        }
+        return new String(out, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Frees the Inflater's native memory. The decompressor can't be used afterwards.
+     */
+    public void end() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,107 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Payloads of the one-frame handshake.
+ *
+ * The client opens with a HELLO frame (Frame.TYPE_HELLO) naming itself, its protocol version and the
+ * capabilities it wants; the server answers with a WELCOME frame (Frame.TYPE_WELCOME) that accepts,
+ * with the capabilities it granted, or rejects with a reason. Both payloads are UTF-8 "key=value"
+ * lines, so either side can add keys without breaking the other. A client with a key sends its HELLO
+ * encrypted, which doubles as the check that both sides have the same key.
+ */
+public final class Hello {
+    public static final int PROTOCOL_VERSION = 1;
+
+    // --- Capabilities ---
+    public static final String CAP_COMPRESS = "compress"; // FLAG_COMPRESSED frames in both directions
+    public static final String CAP_ENCRYPT = "encrypt"; // FLAG_ENCRYPTED frames in both directions
+    public static final String CAP_HEARTBEAT = "heartbeat"; // Server PINGs a quiet client and closes one that stays silent
+
+    // --- Conflicts, the "conflict" field of a reject that the client can fix by itself ---
+    public static final String CONFLICT_NAME = "name"; // Somebody online already has the name
+
+    private Hello() {
+    }
+
+    /**
+     * @param name The name the client wants to use.
+     * @param capabilities What it asks for, e.g. CAP_COMPRESS.
+     * @return The HELLO payload.
+     */
+    public static String hello(String name, List<String> capabilities) {
+        return "version=" + PROTOCOL_VERSION + "\nname=" + oneLine(name) + "\ncaps=" + String.join(",", capabilities);
+    }
+
+    /**
+     * @param name The name the client got.
+     * @param capabilities What the server granted.
+     * @return The WELCOME payload for an accepted HELLO.
+     */
+    public static String accept(String name, List<String> capabilities) {
+        return accept(name, capabilities, 0);
+    }
+
+    /**
+     * @param name The name the client got.
+     * @param capabilities What the server granted.
+     * @param heartbeatSeconds How often the server PINGs a quiet client, so the client can tell a dead
+     *                         connection from a quiet one; 0 = the server doesn't ping this client.
+     * @return The WELCOME payload for an accepted HELLO.
+     */
+    public static String accept(String name, List<String> capabilities, int heartbeatSeconds) {
+        String welcome = "status=accept\nversion=" + PROTOCOL_VERSION + "\nname=" + oneLine(name) + "\ncaps=" + String.join(",", capabilities);
+        return heartbeatSeconds > 0 ? welcome + "\nheartbeat=" + heartbeatSeconds : welcome;
+    }
+
+    /**
+     * @param reason Why, for showing to the user.
+     * @return The WELCOME payload for a rejected HELLO.
+     */
+    public static String reject(String reason) {
+        return "status=reject\nversion=" + PROTOCOL_VERSION + "\nreason=" + oneLine(reason);
+    }
+
+    /**
+     * @param reason Why, for showing to the user.
+     * @param conflict What the client could change to be accepted, e.g. CONFLICT_NAME.
+     * @return The WELCOME payload for a rejected HELLO.
+     */
+    public static String reject(String reason, String conflict) {
+        return reject(reason) + "\nconflict=" + conflict;
+    }
+
+    /**
+     * @param payload A HELLO or WELCOME payload.
+     * @return Its fields; lines without '=' are ignored.
+     */
+    public static Map<String, String> parse(String payload) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (String line : payload.split("\n")) {
+            int at = line.indexOf('=');
+            if (at > 0) {
+                fields.put(line.substring(0, at).trim(), line.substring(at + 1).trim());
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @param fields Parsed with parse().
+     * @return The capabilities listed in the "caps" field.
+     */
+    public static List<String> capabilities(Map<String, String> fields) {
+        String caps = fields.getOrDefault("caps", "");
+        return caps.isEmpty() ? List.of() : new ArrayList<>(Arrays.asList(caps.split(",")));
+    }
+
+    // Values are single lines by construction
+    private static String oneLine(String value) {
+        return value.replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -0,0 +1,115 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets.
+ *
+ * Values below 256 get a bucket each. Above that, every power of two is split into 128 equal buckets,
+ * so any recorded value is reported within 0.8% of itself, from nanoseconds up to centuries, in a fixed
+ * 57 KiB of counters. Any number of threads can record at the same time.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1); // 128
+    // The largest long has its top bit at 62, which needs a shift of 55 to leave 8 significant bits
+    private static final int BUCKETS = (62 - (SUB_BUCKET_BITS - 1) + 2) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * @param value The value to record, e.g. a latency in nanoseconds. Negative values count as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        // Plain reads first: after warm-up min and max rarely change, and a CAS on every record would contend
+        if (value < min.get()) {
+            min.accumulateAndGet(value, Math::min);
+        }
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // [0, 256) map to themselves; above that, the top 8 significant bits pick the bucket
+    private static int indexOf(long value) {
+        if (value < 2 * HALF_SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // Highest value that falls into the bucket, so percentiles never under-report
+    private static long highestValueAt(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @param percentile Between 0 and 100, e.g. 99.9.
+     * @return The smallest recorded value that the given share of all values are less than or equal to,
+     *         or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @param value An upper bound, e.g. a Prometheus bucket boundary.
+     * @return How many recorded values are at most value, to within the bucket precision.
+     */
+    public long countAtOrBelow(long value) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && highestValueAt(i) <= value; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMin() {
+        return total.sum() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+}
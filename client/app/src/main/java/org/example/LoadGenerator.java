@@ -0,0 +1,297 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.*;
+
+/**
+ * Headless load test: opens many CoolTCPClient connections, does the usual handshake with NameGenerator
+ * names and sends chat messages at a fixed total rate, then prints throughput and end-to-end latency.
+ *
+ * Every message carries the time it was supposed to be sent, and every delivery to every member of the
+ * room is measured against that time. Measuring from the intended rather than the actual send time
+ * keeps a stalled server from hiding its own latency by slowing the senders down.
+ *
+ * Setup measures how long a new client takes to get going: from before the connect until the server's
+ * WELCOME, and until the echo of a first message sent right behind the HELLO.
+ *
+ * Given several ports (-p 12345,12346,12347), the clients are spread round-robin over the nodes of a
+ * cluster on one host, so most deliveries cross the relay between nodes and the latency includes it.
+ *
+ * Run with: ./gradlew :app:loadTest --args="-c 1000 -r 2000 -d 30"
+ */
+public class LoadGenerator {
+    private static final String MARKER = ": lg "; // Broadcasts arrive as "<name>: lg <intended send nanos> <padding>"
+    private static final int SETUP_TIMEOUT_MILLIS = 5000; // Per connection, for the WELCOME and the first echo
+
+    private final String server;
+    private final int[] ports; // Clients are spread over these round-robin
+    private final int connections;
+    private final int rooms;
+    private final int rate; // Messages per second over all connections
+    private final int messageBytes;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final byte[] key; // null = plaintext
+    private final boolean compress;
+
+    private final List<CoolTCPClient> clients = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram welcomeLatency = new LatencyHistogram(); // Connect until the WELCOME
+    private final LatencyHistogram firstMessageLatency = new LatencyHistogram(); // Connect until our first message came back
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicLong failedConnections = new AtomicLong();
+    // nanoTime window of measured sends; set after the readers have started, hence volatile
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+
+    LoadGenerator(String server, int[] ports, int connections, int rooms, int rate, int messageBytes,
+                  int warmupSeconds, int durationSeconds, byte[] key, boolean compress) {
+        this.server = server;
+        this.ports = ports;
+        this.connections = connections;
+        this.rooms = rooms;
+        this.rate = rate;
+        this.messageBytes = messageBytes;
+        this.warmupNanos = warmupSeconds * 1_000_000_000L;
+        this.durationNanos = durationSeconds * 1_000_000_000L;
+        this.key = key;
+        this.compress = compress;
+    }
+
+    void run() throws InterruptedException {
+        System.out.println("Connecting " + connections + " clients to " + server + ":" + joinPorts() + "...");
+        NameGenerator names = new NameGenerator();
+        for (int i = 0; i < connections; i++) {
+            long connectStart = System.nanoTime();
+            CoolTCPClient client = new CoolTCPClient(server, ports[i % ports.length], false);
+            if (client.getSocket() == null) {
+                failedConnections.incrementAndGet();
+                continue;
+            }
+            if (compress) {
+                client.RequestCompression();
+            }
+            String name = names.generateName();
+            client.Handshake(name, key);
+            if (!awaitFirstMessage(client, name, connectStart)) {
+                failedConnections.incrementAndGet();
+                client.CloseConnection();
+                continue;
+            }
+            if (rooms > 1) {
+                send(client, "/join load-" + (i % rooms));
+            }
+            clients.add(client);
+        }
+        if (clients.isEmpty()) {
+            System.err.println("No connection could be opened.");
+            return;
+        }
+        // Platform threads: a reader spends its life blocked in a synchronized channel read, which would pin
+        // the carrier of a virtual thread on JDKs before 24 and starve the senders
+        for (CoolTCPClient client : clients) {
+            Thread.ofPlatform().name("lg-reader").daemon().stackSize(256 * 1024).start(() -> readLoop(client));
+        }
+        Thread.sleep(1000); // Let the handshakes and history replays settle before the clock starts
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        measureUntil = measureFrom + durationNanos;
+        System.out.println("Sending " + rate + " messages/s for " + (warmupNanos + durationNanos) / 1_000_000_000L
+                + "s (" + warmupNanos / 1_000_000_000L + "s warm-up)...");
+
+        // Each connection sends at rate / connections, phase-shifted so the total rate stays even
+        long intervalNanos = (long) (1e9 * clients.size() / rate);
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            CoolTCPClient client = clients.get(i);
+            long firstSend = start + intervalNanos * i / clients.size();
+            senders.add(Thread.ofVirtual().name("lg-sender").start(() -> sendLoop(client, firstSend, intervalNanos)));
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(2000); // Let the last deliveries arrive
+        for (CoolTCPClient client : clients) {
+            client.CloseConnection();
+        }
+        printReport();
+    }
+
+    // Sends a first message right behind the HELLO and reads until it comes back, recording both latencies
+    private boolean awaitFirstMessage(CoolTCPClient client, String name, long connectStart) {
+        String first = name + ": first " + connectStart;
+        send(client, "first " + connectStart);
+        Socket socket = client.getSocket();
+        try {
+            socket.setSoTimeout(SETUP_TIMEOUT_MILLIS); // A timeout closes the socket, which ends the loop below
+        } catch (IOException e) {
+            return false;
+        }
+        boolean welcomed = false;
+        long deadline = connectStart + SETUP_TIMEOUT_MILLIS * 1_000_000L;
+        // The deadline matters once the WELCOME turned on heartbeats, which keep the reads from timing out
+        while (!socket.isClosed() && System.nanoTime() - deadline < 0) {
+            String message = client.recieveMessage();
+            if (!welcomed && client.isWelcomed()) {
+                welcomed = true;
+                welcomeLatency.record(System.nanoTime() - connectStart);
+            } else if (message.startsWith("Handshake rejected")) {
+                System.err.println(message);
+                return false;
+            }
+            if (welcomed && message.equals(first)) {
+                firstMessageLatency.record(System.nanoTime() - connectStart);
+                try {
+                    socket.setSoTimeout(client.getHeartbeatMillis()); // Back to the client's own, 0 without heartbeats
+                } catch (IOException e) {
+                    return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendLoop(CoolTCPClient client, long firstSend, long intervalNanos) {
+        String padding = "x".repeat(Math.max(0, messageBytes - 24));
+        for (long next = firstSend; next < measureUntil; next += intervalNanos) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            send(client, "lg " + next + " " + padding);
+            if (next >= measureFrom) {
+                sent.increment();
+            }
+        }
+    }
+
+    private void send(CoolTCPClient client, String message) {
+        if (key != null) {
+            client.SendMessage(message, key);
+        } else {
+            client.SendMessage(message);
+        }
+    }
+
+    private void readLoop(CoolTCPClient client) {
+        while (!client.getSocket().isClosed()) {
+            String message = client.recieveMessage();
+            long now = System.nanoTime();
+            int at = message.indexOf(MARKER);
+            if (at < 0) {
+                continue; // Notices, history, our own handshake
+            }
+            int from = at + MARKER.length();
+            int to = message.indexOf(' ', from);
+            long intended = Long.parseLong(to < 0 ? message.substring(from) : message.substring(from, to));
+            if (intended >= measureFrom && intended < measureUntil) {
+                latency.record(now - intended);
+                delivered.increment();
+            }
+        }
+    }
+
+    private void printReport() {
+        double seconds = durationNanos / 1e9;
+        int perRoom = (clients.size() + rooms - 1) / rooms;
+        System.out.println();
+        System.out.println("=== Load test summary ===");
+        System.out.printf("connections=%d (failed %d) rooms=%d rate=%d msg/s messageBytes=%d duration=%.0fs%n",
+                clients.size(), failedConnections.get(), rooms, rate, messageBytes, seconds);
+        System.out.printf("sent=%d (%.0f msg/s)  delivered=%d (%.0f msg/s, about %d per message expected)%n",
+                sent.sum(), sent.sum() / seconds, delivered.sum(), delivered.sum() / seconds, perRoom);
+        System.out.printf("latency ms: min=%.3f p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f mean=%.3f%n",
+                millis(latency.getMin()), millis(latency.percentile(50)), millis(latency.percentile(90)),
+                millis(latency.percentile(99)), millis(latency.percentile(99.9)), millis(latency.getMax()),
+                latency.getMean() / 1e6);
+        System.out.printf("connect to WELCOME ms: p50=%.3f p99=%.3f max=%.3f; to first message echoed ms: p50=%.3f p99=%.3f max=%.3f%n",
+                millis(welcomeLatency.percentile(50)), millis(welcomeLatency.percentile(99)), millis(welcomeLatency.getMax()),
+                millis(firstMessageLatency.percentile(50)), millis(firstMessageLatency.percentile(99)),
+                millis(firstMessageLatency.getMax()));
+        // The same numbers on one line, for scripts
+        System.out.printf("RESULT connections=%d rooms=%d rate=%d sent=%d delivered=%d p50_us=%d p99_us=%d p999_us=%d max_us=%d"
+                        + " welcome_p50_us=%d welcome_p99_us=%d first_message_p50_us=%d first_message_p99_us=%d%n",
+                clients.size(), rooms, rate, sent.sum(), delivered.sum(), latency.percentile(50) / 1000,
+                latency.percentile(99) / 1000, latency.percentile(99.9) / 1000, latency.getMax() / 1000,
+                welcomeLatency.percentile(50) / 1000, welcomeLatency.percentile(99) / 1000,
+                firstMessageLatency.percentile(50) / 1000, firstMessageLatency.percentile(99) / 1000);
+    }
+
+    private String joinPorts() {
+        StringBuilder sb = new StringBuilder();
+        for (int port : ports) {
+            sb.append(sb.length() > 0 ? "," : "").append(port);
+        }
+        return sb.toString();
+    }
+
+    private static int[] parsePorts(String value) {
+        String[] parts = value.split(",");
+        int[] ports = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ports[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ports;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = new Options();
+        options.addOption(new Option("h", "help", false, "Print this help message"));
+        options.addOption(new Option("s", "server", true, "Server address (default: localhost)"));
+        options.addOption(new Option("p", "port", true, "Server port, or several separated by commas for the nodes of a cluster (default: 12345)"));
+        options.addOption(new Option("c", "connections", true, "Number of chatters (default: 100)"));
+        options.addOption(new Option("R", "rooms", true, "Spread the chatters over this many rooms (default: 1)"));
+        options.addOption(new Option("r", "rate", true, "Messages per second, over all chatters (default: 1000)"));
+        options.addOption(new Option("m", "message-bytes", true, "Approximate message size (default: 64)"));
+        options.addOption(new Option("w", "warmup", true, "Seconds of load before measuring (default: 5)"));
+        options.addOption(new Option("d", "duration", true, "Seconds to measure (default: 30)"));
+        options.addOption(new Option("k", "key", true, "Encryption key in Base64 format (optional)"));
+        options.addOption(new Option("z", "compress", false, "Compress traffic with the server (not combined with -k)"));
+
+        CommandLine cmd = null;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+        if (cmd.hasOption("h")) {
+            new HelpFormatter().printHelp("java org.example.LoadGenerator", options);
+            System.exit(0);
+        }
+
+        try {
+            byte[] key = cmd.hasOption("k") ? Base64.getDecoder().decode(cmd.getOptionValue("k")) : null;
+            new LoadGenerator(
+                    cmd.getOptionValue("s", "localhost"),
+                    parsePorts(cmd.getOptionValue("p", "12345")),
+                    Integer.parseInt(cmd.getOptionValue("c", "100")),
+                    Math.max(1, Integer.parseInt(cmd.getOptionValue("R", "1"))),
+                    Integer.parseInt(cmd.getOptionValue("r", "1000")),
+                    Integer.parseInt(cmd.getOptionValue("m", "64")),
+                    Integer.parseInt(cmd.getOptionValue("w", "5")),
+                    Integer.parseInt(cmd.getOptionValue("d", "30")),
+                    key,
+                    cmd.hasOption("z") && key == null).run();
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            System.err.println("Invalid argument: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.example;
+
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * List model that keeps only the most recent messages.
+ *
+ * Messages live in a ring of fixed capacity: once it is full, each new message replaces the oldest one.
+ * Adding is O(1) per message whatever the history size, and memory stays at capacity messages however
+ * long the session runs. Only touch it on the EDT, like any Swing model.
+ */
+public class MessageListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] messages;
+    private int head = 0; // Index of the oldest message
+    private int size = 0;
+
+    /**
+     * @param capacity Messages kept for scrolling back; older ones are evicted.
+     */
+    public MessageListModel(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Scrollback must be positive: " + capacity);
+        }
+        this.messages = new String[capacity];
+    }
+
+    /**
+     * Appends messages, evicting the oldest ones if needed, and fires at most one removal and one addition.
+     * @param batch The messages, oldest first.
+     */
+    public void addAll(List<String> batch) {
+        int capacity = messages.length;
+        int skipped = Math.max(0, batch.size() - capacity); // Would be evicted by the rest of the batch anyway
+        int added = batch.size() - skipped;
+        if (added == 0) {
+            return;
+        }
+        int evicted = Math.max(0, size + added - capacity);
+        head = (head + evicted) % capacity;
+        size -= evicted;
+        // The slots of evicted messages are exactly the ones the new messages are written to
+        for (int i = skipped; i < batch.size(); i++) {
+            messages[(head + size) % capacity] = batch.get(i);
+            size++;
+        }
+        if (evicted > 0) {
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+        fireIntervalAdded(this, size - added, size - 1);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return messages[(head + index) % messages.length];
+    }
+}
@@ -0,0 +1,59 @@
+package org.example;
+
+import java.awt.Dimension;
+import java.util.List;
+
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+
+/**
+ * Scrollable chat history with bounded scrollback.
+ *
+ * A JList only lays out and paints the rows in view, and with a fixed row size it never measures the
+ * others, so a long history costs neither layout nor repaint time. The history itself is a
+ * MessageListModel. The view follows new messages while it is scrolled to the bottom and stays put
+ * while the user reads further up.
+ */
+public final class MessageView extends JScrollPane {
+    private static final long serialVersionUID = 1L;
+
+    private final MessageListModel model;
+    private final JList<String> list;
+
+    /**
+     * @param scrollback Messages kept; older ones are dropped.
+     * @param width Row width in pixels; longer messages are cut off.
+     * @param visibleRows Rows shown without scrolling.
+     */
+    public MessageView(int scrollback, int width, int visibleRows) {
+        this.model = new MessageListModel(scrollback);
+        this.list = new JList<>(model);
+        // A fixed row size is what keeps the JList from measuring every row on each change
+        list.setPrototypeCellValue("Xg");
+        list.setFixedCellWidth(width);
+        list.setVisibleRowCount(visibleRows);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        setViewportView(list);
+        setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        setPreferredSize(new Dimension(width + getVerticalScrollBar().getPreferredSize().width + 4,
+                list.getPreferredScrollableViewportSize().height + 4));
+    }
+
+    /**
+     * Appends messages. Call on the EDT.
+     * @param messages The messages, oldest first.
+     */
+    public void append(List<String> messages) {
+        JScrollBar bar = getVerticalScrollBar();
+        boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+        model.addAll(messages);
+        if (following) {
+            // After the pending revalidation, which knows about the new rows
+            SwingUtilities.invokeLater(() -> list.ensureIndexIsVisible(model.getSize() - 1));
+        }
+    }
+}
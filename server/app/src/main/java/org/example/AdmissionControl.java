@@ -0,0 +1,62 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Server-wide limits on new connections, checked by every engine's accept loop: a maximum number of open
+ * connections (--max-connections) and a maximum accept rate (--accept-rate). A connection over a limit is
+ * not handed to a session at all; it gets a WELCOME rejecting it and is closed, which costs the server
+ * almost nothing, so a connection flood sheds load instead of piling up.
+ */
+public final class AdmissionControl {
+    private final Set<Connection> connectedClients;
+    private final ServerMetrics metrics;
+    private final int maxConnections; // 0 = unlimited
+    private final TokenBucket acceptRate; // null = unlimited
+
+    AdmissionControl(ServerConfig config, Set<Connection> connectedClients, ServerMetrics metrics) {
+        this.connectedClients = connectedClients;
+        this.metrics = metrics;
+        this.maxConnections = config.maxConnections;
+        // A second's worth of accepts can arrive at once, e.g. clients coming back after a restart
+        this.acceptRate = config.acceptRate > 0 ? new TokenBucket(config.acceptRate, config.acceptRate) : null;
+    }
+
+    /**
+     * Decides on a connection that was just accepted; rejects and closes it if it is over a limit.
+     * @param channel The new connection.
+     * @return true if the engine should go on and serve it.
+     */
+    public boolean admit(SocketChannel channel) {
+        String reason = null;
+        if (maxConnections > 0 && connectedClients.size() >= maxConnections) {
+            reason = "Server is full (" + maxConnections + " connections), try again later";
+        } else if (acceptRate != null && !acceptRate.tryAcquire(1)) {
+            reason = "Server is busy accepting connections, try again in a moment";
+        }
+        if (reason == null) {
+            return true;
+        }
+        metrics.onRejectedConnection();
+        String refusal = reason;
+        Log.debug(() -> "Rejected connection from " + channel.socket().getInetAddress().getHostAddress() + ": " + refusal);
+        reject(channel, reason);
+        return false;
+    }
+
+    // Best effort: one non-blocking write of the reject, so the accept loop never waits on a client
+    private static void reject(SocketChannel channel, String reason) {
+        try (channel) {
+            channel.configureBlocking(false);
+            ByteBuffer frame = FrameEncoder.encode(Frame.TYPE_WELCOME, (byte) 0,
+                    Hello.reject(reason).getBytes(StandardCharsets.UTF_8));
+            channel.write(frame);
+        } catch (IOException e) {
+            // Gone already, nothing to tell
+        }
+    }
+}
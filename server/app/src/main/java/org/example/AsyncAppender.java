@@ -0,0 +1,151 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines on its own thread so the threads that log never wait for the console.
+ *
+ * Any number of threads append into a fixed ring of slots: a producer claims a slot with one CAS on the
+ * tail and fills it in, and the single writer thread empties slots in order. When the ring is full the
+ * line is dropped and counted instead of blocking the caller; the writer reports how many it lost.
+ */
+final class AsyncAppender {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    record Entry(LogLevel level, long timeMillis, String thread, String message, Throwable error) {
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // Next slot to claim
+    private volatile long head = 0; // Next slot to write; only the writer moves it
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0;
+
+    // Own unsynchronized, buffered streams: only the writer uses them, and it flushes once the ring is empty
+    private final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+    private final PrintStream err = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 16 * 1024), false);
+
+    private final Thread writer;
+    private volatile boolean writerParked = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity Lines that can wait for the writer; rounded up to a power of two.
+     */
+    AsyncAppender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.writer = Thread.ofPlatform().name("log-writer").daemon().unstarted(this::writeLoop);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
+    }
+
+    /**
+     * Queues a line without ever blocking.
+     * @param entry The line to write.
+     * @return false if the ring was full and the line was dropped.
+     */
+    boolean append(Entry entry) {
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= slots.length()) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        slots.set((int) slot & mask, entry);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long next = head;
+            int index = (int) next & mask;
+            Entry entry = slots.get(index);
+            if (entry == null) {
+                if (next != tail.get()) {
+                    Thread.yield(); // Claimed, but the producer hasn't filled it in yet
+                    continue;
+                }
+                reportDropped();
+                out.flush();
+                err.flush();
+                if (closed) {
+                    return;
+                }
+                writerParked = true;
+                // Check again after announcing the park, or a line appended in between would wait for the timeout
+                if (slots.get(index) == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+                continue;
+            }
+            slots.set(index, null);
+            head = next + 1;
+            write(entry);
+        }
+    }
+
+    private void write(Entry entry) {
+        PrintStream stream = entry.level().compareTo(LogLevel.WARN) >= 0 ? err : out;
+        if (stream == err) {
+            out.flush(); // Keep the two streams in order on a shared console
+        }
+        stream.print(TIME.format(Instant.ofEpochMilli(entry.timeMillis())));
+        stream.print(' ');
+        stream.print(entry.level());
+        stream.print(" [");
+        stream.print(entry.thread());
+        stream.print("] ");
+        stream.println(entry.message());
+        if (entry.error() != null) {
+            entry.error().printStackTrace(stream);
+        }
+        if (stream == err) {
+            err.flush();
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        if (total > droppedReported) {
+            err.println(TIME.format(Instant.now()) + " WARN [log-writer] " + (total - droppedReported)
+                    + " log lines dropped, the log can't keep up");
+            droppedReported = total;
+        }
+    }
+
+    // Lets the writer empty the ring before the JVM exits
+    private void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Server-wide state shared by every ChatSession of one engine
+public final class ChatHub {
+    private static final int TIMER_TICK_MILLIS = 100;
+
+    // Every open connection, whatever room it is in
+    private final Set<Connection> connectedClients = ConcurrentHashMap.newKeySet();
+    private final RoomRegistry rooms;
+    private final MessageJournal journal; // null unless --journal-dir was given
+    private final CryptoStage crypto; // null unless --key was given
+    private final boolean compression;
+    private final int clientMessageRate; // 0 = unlimited
+    private final int clientByteRate; // 0 = unlimited
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final AdmissionControl admission;
+    private final int heartbeatSeconds; // 0 = no PINGs
+    private final int idleTimeoutSeconds; // 0 = quiet clients are never closed
+    private final TimerWheel timers; // null if both are off
+    private final PresenceEvents presence;
+    private final NameRegistry names;
+    private final ClusterRelay relay; // null unless --cluster-port or --peers was given
+
+    public ChatHub(ServerConfig config) {
+        this.rooms = new RoomRegistry(config.historyMessages, config.historyBytes, config.historyRooms);
+        if (config.journalDir != null) {
+            try {
+                this.journal = new MessageJournal(Path.of(config.journalDir), config.journalSegmentBytes,
+                        config.journalMaxSegments, config.journalFsync, config.journalFsyncMillis);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the message journal in " + config.journalDir, e);
+            }
+        } else {
+            this.journal = null;
+        }
+        this.compression = config.compression;
+        this.clientMessageRate = config.clientMessageRate;
+        this.clientByteRate = config.clientByteRate;
+        this.admission = new AdmissionControl(config, connectedClients, metrics);
+        this.crypto = config.key != null ? new CryptoStage(config.key, config.cryptoThreads) : null;
+        this.names = new NameRegistry(config.nameCollisionPolicy);
+        this.relay = config.clusterPort > 0 || !config.peers.isEmpty() ? new ClusterRelay(config, this) : null;
+        this.presence = new PresenceEvents(rooms, crypto, metrics, config.presenceMillis, relay);
+        this.heartbeatSeconds = config.heartbeatSeconds;
+        this.idleTimeoutSeconds = config.idleTimeoutSeconds;
+        int longest = Math.max(heartbeatSeconds, idleTimeoutSeconds);
+        // 100 ms ticks, and one turn of the wheel covers the longest timeout, so timeouts fire on their first visit
+        this.timers = longest > 0 ? new TimerWheel(TIMER_TICK_MILLIS, longest * 1000 / TIMER_TICK_MILLIS + 1) : null;
+    }
+
+    public Set<Connection> getConnectedClients() {
+        return connectedClients;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    /**
+     * @return The message journal, or null if the server runs without one.
+     */
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return true if clients may ask for compressed frames.
+     */
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    public NameRegistry getNames() {
+        return names;
+    }
+
+    /**
+     * @return The link to the other nodes of the cluster, or null if this server runs on its own.
+     */
+    public ClusterRelay getRelay() {
+        return relay;
+    }
+
+    /**
+     * Starts relaying to and from the other nodes, if this server is part of a cluster.
+     * Called by the engines once they are listening for clients.
+     */
+    void startCluster() {
+        if (relay != null) {
+            relay.start();
+        }
+    }
+
+    public PresenceEvents getPresence() {
+        return presence;
+    }
+
+    /**
+     * @return A new per-client frame rate limit, or null if there is none.
+     */
+    TokenBucket newMessageLimit() {
+        return clientMessageRate > 0 ? new TokenBucket(clientMessageRate, clientMessageRate) : null;
+    }
+
+    /**
+     * @return A new per-client byte rate limit, or null if there is none.
+     */
+    TokenBucket newByteLimit() {
+        return clientByteRate > 0 ? new TokenBucket(clientByteRate, clientByteRate) : null;
+    }
+
+    /**
+     * @return How often quiet clients are PINGed, in seconds, or 0 if they aren't.
+     */
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+
+    /**
+     * @param connection A new connection.
+     * @return Its liveness check, not started yet, or null if heartbeats and idle timeouts are both off.
+     */
+    Heartbeat newHeartbeat(Connection connection) {
+        return timers != null ? new Heartbeat(connection, timers, metrics, heartbeatSeconds * 1_000_000_000L,
+                idleTimeoutSeconds * 1_000_000_000L) : null;
+    }
+
+    /**
+     * @return The encryption stage, or null if the server has no key.
+     */
+    public CryptoStage getCrypto() {
+        return crypto;
+    }
+}
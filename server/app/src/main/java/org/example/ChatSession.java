@@ -0,0 +1,603 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+
+// Per-connection chat protocol (handshake, name, rooms, broadcast), shared by every server engine.
+// Engines only have to turn bytes into frames and call onConnect/onFrame/onDisconnect.
+public class ChatSession {
+    private static final int MAX_REPLAY = 200; // Journal records per /since
+    private static final int MAX_WHO = 100; // Names listed by /who
+    private static final ByteBuffer PONG = FrameEncoder.encodeShared(Frame.TYPE_PONG, (byte) 0, new byte[0]);
+    private final Connection connection;
+    private final ChatHub hub;
+    private final ServerMetrics metrics;
+    private final CryptoStage crypto; // null unless the server has a key
+    // With a key, everything after onConnect runs here, in order, on the crypto workers
+    private final Executor lane;
+    // Per-client rate limits, null when off; only checked on the thread that reads this client's frames
+    private final TokenBucket messageLimit;
+    private final TokenBucket byteLimit;
+    private boolean throttled = false; // Dropping frames, and the client was told so
+    // null if heartbeats and idle timeouts are off; only started for clients that ask for it in their HELLO,
+    // since older clients neither answer PINGs nor expect to be closed for being quiet
+    private final Heartbeat heartbeat;
+    private Room room; // The room this client talks in; everyone starts in the lobby
+    private long joinedAtSequence; // History position when this client joined the room
+
+    private String name = "Unknown"; // Default name if not set
+
+    // Inflates this client's compressed frames; null until it asks for compression.
+    // Set on the session's thread, used by the reading thread, which may be a different one when there is a key.
+    private volatile FrameDecompressor decompressor;
+
+    private boolean nextMessageIsHandshake = false;
+    private boolean handshakeReceived = false;
+    private long connectedAt; // System.nanoTime() of onConnect, for the handshake latency
+
+    public ChatSession(Connection connection, ChatHub hub) {
+        this.connection = connection;
+        this.hub = hub; // Reference to the shared server state
+        this.metrics = hub.getMetrics();
+        this.crypto = hub.getCrypto();
+        this.lane = crypto != null ? crypto.newLane() : null;
+        this.messageLimit = hub.newMessageLimit();
+        this.byteLimit = hub.newByteLimit();
+        this.heartbeat = hub.newHeartbeat(connection);
+    }
+
+    public void onConnect() {
+        connectedAt = System.nanoTime();
+        Log.info("Handling client: " + connection.getAddress());
+        joinRoom(RoomRegistry.DEFAULT_ROOM);
+        // The room hears about this client once it has a name, see completeHandshake()
+    }
+
+    /**
+     * Processes one frame received from the client.
+     * @param frame The decoded frame; only valid for the duration of this call.
+     */
+    public void onFrame(Frame frame) {
+        metrics.onFrame();
+        if (heartbeat != null) {
+            heartbeat.onHeard(); // Any frame will do, PONGs are only for clients with nothing to say
+        }
+        byte type = frame.getType();
+        if (type != Frame.TYPE_TEXT && type != Frame.TYPE_HELLO && !isHeartbeat(type)) {
+            Log.warn("Ignoring frame of unknown type " + frame.getType() + " from " + connection.getAddress());
+            return;
+        }
+        if (frame.hasFlag(Frame.FLAG_ENCRYPTED) && frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            Log.warn("Ignoring frame from " + connection.getAddress() + ": compression can't be combined with encryption");
+            return;
+        }
+        boolean allowed = withinRateLimit(frame);
+        if (frame.hasFlag(Frame.FLAG_ENCRYPTED)) {
+            if (!allowed) {
+                return;
+            }
+            if (isHeartbeat(type)) {
+                onHeartbeat(type); // Nothing in the payload worth decrypting
+                return;
+            }
+            if (crypto == null) {
+                Log.warn("Ignoring encrypted frame from " + connection.getAddress() + ": no key configured");
+                return;
+            }
+            // The frame is a view into the decoder's buffer, so copy it before handing it to a worker
+            ByteBuffer payload = ByteBuffer.allocate(frame.getPayload().remaining()).put(frame.getPayload().duplicate()).flip();
+            lane.execute(() -> onEncryptedFrame(type, payload));
+            return;
+        }
+        String text;
+        if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            // Inflated right here, in arrival order, since the inflater carries state from frame to frame
+            FrameDecompressor decompressor = this.decompressor;
+            if (decompressor == null) {
+                Log.warn("Compressed frame from " + connection.getAddress() + " without asking for compression, disconnecting");
+                connection.close();
+                return;
+            }
+            try {
+                text = decompressor.inflateText(frame.getPayload());
+            } catch (DataFormatException e) {
+                Log.warn("Corrupt compressed frame from " + connection.getAddress() + ", disconnecting: " + e.getMessage());
+                connection.close();
+                return;
+            }
+        } else {
+            text = frame.text();
+        }
+        if (!allowed) {
+            return; // Compressed frames still had to be inflated, to keep the inflater in step
+        }
+        if (isHeartbeat(type)) {
+            onHeartbeat(type);
+            return;
+        }
+        if (lane != null) {
+            // Plaintext goes through the lane too, so it can't overtake encrypted frames sent before it
+            lane.execute(() -> dispatch(type, text, false));
+            return;
+        }
+        dispatch(type, text, false);
+    }
+
+    private static boolean isHeartbeat(byte type) {
+        return type == Frame.TYPE_PING || type == Frame.TYPE_PONG;
+    }
+
+    // Answered right away on the reading thread: a PONG carries nothing that has to stay in order with chat
+    private void onHeartbeat(byte type) {
+        if (type == Frame.TYPE_PING) {
+            connection.send(PONG.duplicate());
+        }
+    }
+
+    // Takes the frame's share of this client's rate limits; over them, the frame is dropped
+    private boolean withinRateLimit(Frame frame) {
+        boolean allowed = (messageLimit == null || messageLimit.tryAcquire(1))
+                && (byteLimit == null || byteLimit.tryAcquire(Frame.HEADER_LENGTH + frame.getPayload().remaining()));
+        if (allowed) {
+            throttled = false;
+            return true;
+        }
+        metrics.onThrottled();
+        if (!throttled) {
+            // Once per run of dropped frames, so a flood doesn't get a flood of notices back
+            throttled = true;
+            Log.debug(() -> "Rate limiting " + name + " (" + connection.getAddress() + ")");
+            reply("You are sending too fast, messages are being dropped.");
+        }
+        return false;
+    }
+
+    // Runs on a crypto worker
+    private void onEncryptedFrame(byte type, ByteBuffer payload) {
+        String text;
+        try {
+            text = crypto.decryptText(payload);
+        } catch (Exception e) {
+            Log.warn("Could not decrypt frame from " + connection.getAddress() + ": " + e.getMessage());
+            if (type == Frame.TYPE_HELLO) {
+                welcome(Hello.reject("Could not decrypt your HELLO, is your key the same as the server's?"));
+            } else {
+                reply("Could not decrypt your message, is your key the same as the server's?");
+            }
+            return;
+        }
+        connection.setEncrypted(true);
+        dispatch(type, text, true);
+    }
+
+    private void dispatch(byte type, String text, boolean encrypted) {
+        if (type == Frame.TYPE_HELLO) {
+            onHello(text, encrypted);
+        } else {
+            onMessage(text);
+        }
+    }
+
+    // The one-frame handshake: name, version and capabilities in, an explicit accept or reject out
+    private void onHello(String text, boolean encrypted) {
+        Map<String, String> fields = Hello.parse(text);
+        int version;
+        try {
+            version = Integer.parseInt(fields.getOrDefault("version", ""));
+        } catch (NumberFormatException e) {
+            version = 0;
+        }
+        String requestedName = fields.getOrDefault("name", "");
+        List<String> capabilities = Hello.capabilities(fields);
+        if (version != Hello.PROTOCOL_VERSION) {
+            welcome(Hello.reject("Unsupported protocol version " + fields.get("version")
+                    + ", this server speaks version " + Hello.PROTOCOL_VERSION));
+            return;
+        }
+        if (requestedName.isEmpty()) {
+            welcome(Hello.reject("A name is required"));
+            return;
+        }
+        if (!NameRegistry.isValidName(requestedName)) {
+            welcome(Hello.reject("Names are 1 to " + NameRegistry.MAX_NAME_LENGTH + " characters without spaces"));
+            return;
+        }
+        if (handshakeReceived) {
+            welcome(Hello.reject("Already introduced as " + name));
+            return;
+        }
+        if (capabilities.contains(Hello.CAP_ENCRYPT) && !encrypted) {
+            welcome(Hello.reject("Encryption needs the HELLO to be encrypted with the server's key"));
+            return;
+        }
+        String reservedName = hub.getNames().reserve(requestedName, connection);
+        if (reservedName == null) {
+            welcome(Hello.reject("The name " + requestedName + " is already taken", Hello.CONFLICT_NAME));
+            return;
+        }
+        List<String> granted = new ArrayList<>();
+        if (encrypted) {
+            granted.add(Hello.CAP_ENCRYPT);
+        }
+        if (capabilities.contains(Hello.CAP_COMPRESS) && hub.isCompressionEnabled() && !encrypted) {
+            startCompression(); // Before the WELCOME is queued, so it is the first compressed frame
+            granted.add(Hello.CAP_COMPRESS);
+        }
+        boolean heartbeats = capabilities.contains(Hello.CAP_HEARTBEAT) && heartbeat != null;
+        if (heartbeats) {
+            granted.add(Hello.CAP_HEARTBEAT);
+        }
+        welcome(Hello.accept(reservedName, granted, heartbeats ? hub.getHeartbeatSeconds() : 0));
+        if (heartbeats) {
+            heartbeat.start();
+        }
+        completeHandshake(reservedName);
+    }
+
+    private void welcome(String payload) {
+        deliver(FrameEncoder.encode(Frame.TYPE_WELCOME, (byte) 0, payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // newName has been reserved for this connection already
+    private void completeHandshake(String newName) {
+        if (handshakeReceived && !name.equalsIgnoreCase(newName)) {
+            hub.getNames().release(name, connection); // Renamed with a second text handshake
+        }
+        name = newName;
+        Log.info("Client name set to: " + name);
+        nextMessageIsHandshake = false;
+        handshakeReceived = true;
+        metrics.onHandshake(System.nanoTime() - connectedAt);
+        replayHistory();
+        hub.getPresence().joined(room, name);
+    }
+
+    /**
+     * Processes one message received from the client.
+     * @param receivedData The message as read from the connection.
+     */
+    public void onMessage(String receivedData) {
+        if (receivedData.trim().isEmpty()) {
+            // If the received data is empty, skip processing
+            return;
+        }
+
+        if (receivedData.equals("compress")) {
+            negotiateCompression();
+            return;
+        }
+
+        if (receivedData.equalsIgnoreCase("handshake")) {
+            nextMessageIsHandshake = true;
+            Log.debug(() -> "Handshake initiated by client: " + connection.getAddress());
+            return; // Skip further processing for this message
+        }
+
+        if (nextMessageIsHandshake && receivedData.startsWith("name ")) {
+            // If the next message is a handshake, we can process it
+            Log.debug(() -> "Handshake message received from client: " + connection.getAddress());
+            String requestedName = receivedData.substring(5).trim(); // The name after "name "
+            if (!NameRegistry.isValidName(requestedName)) {
+                reply("Names are 1 to " + NameRegistry.MAX_NAME_LENGTH + " characters without spaces");
+                return;
+            }
+            String reservedName = hub.getNames().reserve(requestedName, connection);
+            if (reservedName == null) {
+                reply("The name " + requestedName + " is already taken, please pick another one.");
+                return;
+            }
+            if (!reservedName.equals(requestedName)) {
+                // Renamed by the collision policy; the WELCOME says so on the HELLO path, here only a reply can
+                reply("The name " + requestedName + " is already taken, you are now known as " + reservedName);
+            }
+            completeHandshake(reservedName);
+            return; // Skip further processing for this message
+        }
+        Log.debug(() -> "Received from " + name + " (" + connection.getAddress() + "): " + receivedData);
+
+        if (handshakeReceived && receivedData.startsWith("/")) {
+            handleCommand(receivedData.trim());
+        } else if (handshakeReceived) {
+            metrics.onMessage();
+            broadcastChat(name + ": " + receivedData);
+        } else {
+            reply("Please send a handshake message first.");
+        }
+
+        Log.debug(() -> "Processing client: " + connection.getAddress());
+    }
+
+    // The client asked for compression. The answer is compressed if we agree, which tells the client it may
+    // compress its own frames from then on.
+    private void negotiateCompression() {
+        if (!hub.isCompressionEnabled()) {
+            reply("Compression is turned off on this server.");
+            return;
+        }
+        if (connection.isEncrypted()) {
+            reply("Compression can't be combined with encryption.");
+            return;
+        }
+        startCompression();
+        reply("Compression on");
+    }
+
+    private void startCompression() {
+        if (decompressor == null) {
+            decompressor = new FrameDecompressor();
+            connection.enableCompression();
+        }
+    }
+
+    // Commands: "/join <room>", "/leave" (back to the lobby), "/since <id>" (replay from the journal),
+    // "/who" (who is online) and "/msg <name> <text>" (to one client only)
+    private void handleCommand(String command) {
+        if (command.startsWith("/join ")) {
+            String target = command.substring(6).trim();
+            if (!RoomRegistry.isValidName(target)) {
+                reply("Invalid room name: " + target);
+                return;
+            }
+            switchRoom(target);
+        } else if (command.equals("/leave")) {
+            switchRoom(RoomRegistry.DEFAULT_ROOM);
+        } else if (command.startsWith("/since ")) {
+            try {
+                replayJournal(Long.parseLong(command.substring(7).trim()));
+            } catch (NumberFormatException e) {
+                reply("Usage: /since <message id>");
+            }
+        } else if (command.equals("/who")) {
+            who();
+        } else if (command.startsWith("/msg ")) {
+            String rest = command.substring(5).trim();
+            int space = rest.indexOf(' ');
+            if (space < 0) {
+                reply("Usage: /msg <name> <message>");
+                return;
+            }
+            directMessage(rest.substring(0, space), rest.substring(space + 1).trim());
+        } else {
+            reply("Unknown command: " + command);
+        }
+    }
+
+    private void who() {
+        NameRegistry names = hub.getNames();
+        List<String> online = names.names(MAX_WHO);
+        int more = names.size() - online.size();
+        reply(names.size() + " online: " + String.join(", ", online) + (more > 0 ? " and " + more + " more" : ""));
+    }
+
+    // Goes to the one recipient, found with a single lookup; no other connection, history or journal sees it
+    private void directMessage(String targetName, String message) {
+        Connection target = hub.getNames().lookup(targetName);
+        if (target == null || !target.isOpen()) {
+            reply("Nobody called " + targetName + " is online.");
+            return;
+        }
+        metrics.onDirectMessage();
+        Log.debug(() -> "Direct message from " + name + " to " + targetName + ": " + message);
+        deliver(target, FrameEncoder.encodeText("[from " + name + "] " + message));
+        if (target != connection) {
+            reply("[to " + targetName + "] " + message);
+        }
+    }
+
+    private void switchRoom(String target) {
+        if (room != null && room.getName().equals(target)) {
+            reply("You are already in " + target);
+            return;
+        }
+        if (room != null) {
+            hub.getRooms().leave(room, connection);
+            hub.getPresence().left(room, name);
+        }
+        joinRoom(target);
+        reply("You joined " + target + " (" + room.size() + " here)");
+        replayHistory();
+        hub.getPresence().joined(room, name);
+    }
+
+    private void joinRoom(String roomName) {
+        room = hub.getRooms().join(roomName, connection);
+        MessageHistory history = room.getHistory();
+        joinedAtSequence = history != null ? history.nextSequence() : 0;
+    }
+
+    // Streams this room's journaled messages after the given id, in as few buffers as possible
+    private void replayJournal(long afterId) {
+        MessageJournal journal = hub.getJournal();
+        if (journal == null) {
+            reply("The message journal is turned off on this server.");
+            return;
+        }
+        JournalReplay replay = new JournalReplay();
+        long lastId = journal.replaySince(afterId, room.getName(), MAX_REPLAY, replay);
+        replay.flush();
+        if (replay.count == MAX_REPLAY) {
+            reply("More messages available, use /since " + lastId);
+        } else if (replay.count == 0) {
+            reply("No messages after #" + afterId + " in " + room.getName());
+        }
+    }
+
+    // Packs replayed journal records into large buffers of back-to-back frames instead of one send per record
+    private class JournalReplay implements MessageJournal.RecordVisitor {
+        private static final int BATCH_BYTES = 64 * 1024;
+        private ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+        int count = 0;
+
+        @Override
+        public void visit(long id, long timestampMillis, String roomName, String text) {
+            ByteBuffer payload = ByteBuffer.wrap(("[#" + id + "] " + text).getBytes(StandardCharsets.UTF_8));
+            if (!FrameEncoder.encode(Frame.TYPE_TEXT, (byte) 0, payload, batch)) {
+                flush();
+                batch = ByteBuffer.allocate(Math.max(BATCH_BYTES, Frame.HEADER_LENGTH + payload.remaining()));
+                FrameEncoder.encode(Frame.TYPE_TEXT, (byte) 0, payload, batch);
+            }
+            count++;
+        }
+
+        void flush() {
+            if (batch.position() > 0) {
+                deliver(batch.flip());
+                batch = ByteBuffer.allocate(BATCH_BYTES);
+            }
+        }
+    }
+
+    // Sends the messages said in this room before the client joined it
+    private void replayHistory() {
+        MessageHistory history = room.getHistory();
+        if (history == null) {
+            return;
+        }
+        ByteBuffer replay = history.replayBefore(joinedAtSequence);
+        if (replay != null) {
+            deliver(replay);
+        }
+    }
+
+    public void onDisconnect() {
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        if (lane != null) {
+            // Let frames that are still being decrypted finish first
+            lane.execute(this::disconnect);
+        } else {
+            disconnect();
+        }
+    }
+
+    private void disconnect() {
+        if (decompressor != null) {
+            decompressor.end();
+        }
+        metrics.onDisconnect();
+        // IMPORTANT: Remove the client from the shared set and its room
+        hub.getConnectedClients().remove(connection);
+        if (room != null) {
+            hub.getRooms().leave(room, connection);
+            if (handshakeReceived) {
+                hub.getPresence().left(room, name); // Nobody was told about a client that never gave its name
+            }
+            room = null;
+        }
+        if (handshakeReceived) {
+            hub.getNames().release(name, connection);
+        }
+        Log.info(() -> "Client removed. Total clients: " + hub.getConnectedClients().size());
+    }
+
+    // Sends a message to this client only
+    private void reply(String message) {
+        deliver(FrameEncoder.encodeText(message));
+    }
+
+    // Sends one or more frames to this client only, encrypted if the client uses the key
+    private void deliver(ByteBuffer frames) {
+        deliver(connection, frames);
+    }
+
+    // Sends one or more frames to one client, encrypted if that client uses the key
+    private void deliver(Connection recipient, ByteBuffer frames) {
+        if (crypto != null && recipient.isEncrypted()) {
+            frames = crypto.encryptFrames(frames);
+        }
+        recipient.send(frames);
+    }
+
+    // Sends a chat message to everyone in this client's room and remembers it in the room's history for late joiners.
+    // With a journal, the message carries its journal id the way /since replays it, so clients know where to resume.
+    // Join and leave notices go through PresenceEvents instead.
+    private void broadcastChat(String message) {
+        if (room == null) {
+            return;
+        }
+        Log.debug(() -> "Broadcasting to " + room.getName() + ": " + message);
+        long start = System.nanoTime();
+        MessageJournal journal = hub.getJournal();
+        long id = journal != null ? journal.append(room.getName(), message) : 0;
+        ByteBuffer frame = FrameEncoder.encodeShared(id > 0 ? "[#" + id + "] " + message : message);
+        MessageHistory history = room.getHistory();
+        if (history != null) {
+            history.append(frame);
+        }
+        broadcast(frame, start);
+        ClusterRelay relay = hub.getRelay();
+        if (relay != null) {
+            relay.publishChat(room.getName(), message);
+        }
+    }
+
+    // Fans an encoded frame out to the room and records how long the broadcast took since start
+    private void broadcast(ByteBuffer frame, long start) {
+        int recipients = fanOut(room.getMembers(), frame, crypto);
+        metrics.onBroadcast(recipients, System.nanoTime() - start);
+    }
+
+    /**
+     * Queues one already encoded frame for every open connection.
+     * Each recipient gets its own duplicate() view, so the payload is encoded and stored only once.
+     * @param clients The recipients.
+     * @param frame The shared frame, e.g. from FrameEncoder.encodeShared().
+     * @return The number of connections the frame was queued for.
+     */
+    static int fanOut(Iterable<Connection> clients, ByteBuffer frame) {
+        return fanOut(clients, frame, null);
+    }
+
+    /**
+     * Like fanOut(clients, frame), but clients that use the key get an encrypted copy.
+     * The copy is made at most once per call, however many of the recipients need it.
+     * @param clients The recipients.
+     * @param frame The shared plaintext frame.
+     * @param crypto The encryption stage, or null if the server has no key.
+     * @return The number of connections the frame was queued for.
+     */
+    static int fanOut(Iterable<Connection> clients, ByteBuffer frame, CryptoStage crypto) {
+        return fanOut(clients, frame, crypto, false);
+    }
+
+    /**
+     * Like fanOut(clients, frame, crypto), optionally for frames that matter less than chat.
+     * @param clients The recipients.
+     * @param frame The shared plaintext frame.
+     * @param crypto The encryption stage, or null if the server has no key.
+     * @param skipBacklogged Leave out clients whose outbound queue is backed up, so the frame can't
+     *                       push out chat that is waiting there.
+     * @return The number of connections the frame was queued for.
+     */
+    static int fanOut(Iterable<Connection> clients, ByteBuffer frame, CryptoStage crypto, boolean skipBacklogged) {
+        ByteBuffer encrypted = null; // Made on the first recipient that needs it
+        int recipients = 0;
+        // Iterate over the concurrent member set and send the message
+        for (Connection client : clients) {
+            // Check if the connection is still open before sending
+            if (!client.isOpen()) {
+                continue;
+            }
+            if (skipBacklogged && client.getOutboundQueue().isBacklogged()) {
+                continue;
+            }
+            // Queueing never fails; a client whose writer hits an error is closed and removed by its engine
+            if (crypto != null && client.isEncrypted()) {
+                if (encrypted == null) {
+                    encrypted = crypto.encryptShared(frame);
+                }
+                client.send(encrypted.duplicate());
+            } else {
+                client.send(frame.duplicate());
+            }
+            recipients++;
+        }
+        return recipients;
+    }
+}
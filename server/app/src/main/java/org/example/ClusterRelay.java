@@ -0,0 +1,503 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links this server to the other nodes of a cluster, so that clients on any node see each other's chat
+ * messages and join/leave notices.
+ *
+ * Every node dials every peer in --peers and only sends on the links it dialed; links that peers dial in
+ * are only read. With the full mesh that gives, nothing has to be forwarded, so an event crosses exactly
+ * one link. Events are collected for up to --relay-batch-ms and sent as one Frame.TYPE_RELAY frame,
+ * encoded once for all peers. A peer that is down gets its batches queued, oldest dropped first, and
+ * the link is dialed again with jittered backoff.
+ *
+ * Every event carries a message id that only grows per origin node, starting from the wall clock so a
+ * restarted node keeps counting upwards. A receiver drops ids it has already seen from that origin,
+ * which makes it safe to send the batch that was in flight again when a link had to be re-dialed.
+ * Events also carry their wall-clock send time, for the relay latency histogram; that is exact for
+ * nodes on one box and as good as the clock sync otherwise.
+ *
+ * The peer port listens on loopback unless --cluster-bind says otherwise, and a node that listens
+ * anywhere else needs --key. Each link starts with a handshake in which the listening side sends a
+ * random challenge and the dialing side answers with its node id and an HMAC-SHA256 of both, keyed
+ * from --key, so only nodes that share the key can relay into this one; without a key the id is
+ * taken on trust. The relay frames themselves are not encrypted.
+ *
+ * Handshake (Hello-style key=value payloads): listener HELLO "version", "challenge" (Base64); dialer
+ * HELLO "version", "node", "mac" (Base64); listener WELCOME, an accept or a reject with a reason.
+ *
+ * Relay payload (big endian): origin node id (string), event count (int32), then per event: kind (int8),
+ * id (int64), send time in epoch microseconds (int64), room (string), text (string). Strings are an
+ * int32 byte length followed by UTF-8. For presence events the text is the name.
+ */
+public final class ClusterRelay {
+    private static final byte KIND_CHAT = 1;
+    private static final byte KIND_JOIN = 2;
+    private static final byte KIND_LEAVE = 3;
+
+    private static final int MAX_BATCH_EVENTS = 512;
+    private static final int MAX_BATCH_BYTES = 256 * 1024; // Stop collecting once a batch is about this big
+    private static final int MAX_PENDING_EVENTS = 100_000; // Waiting for the batcher; more are dropped
+    private static final int LINK_QUEUE_BATCHES = 4096; // Per peer, while it is slow or down
+    private static final int WRITE_BATCH = 64; // Batches per gathering write
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // A peer that takes longer is dropped
+    private static final int CHALLENGE_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final InetAddress bindAddress;
+    private final int port; // 0 = don't listen, only send
+    // Derived from --key rather than the key itself, so the AES key is never used for anything else.
+    // null = peers are not authenticated
+    private final byte[] authKey;
+    private final SecureRandom random = new SecureRandom();
+    private final long batchNanos;
+    private final ChatHub hub;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<Event> events = new ArrayBlockingQueue<>(MAX_PENDING_EVENTS);
+    private final List<PeerLink> links = new ArrayList<>();
+    // Highest message id seen per origin node
+    private final ConcurrentHashMap<String, AtomicLong> lastSeen = new ConcurrentHashMap<>();
+    private long nextId = System.currentTimeMillis() * 1_000_000L; // Only touched by the batcher
+
+    // Ids are given out by the batcher, in queue order, so they can't end up out of order in a batch
+    private record Event(byte kind, long sentAtMicros, String room, String text) {
+    }
+
+    ClusterRelay(ServerConfig config, ChatHub hub) {
+        this.nodeId = config.nodeId != null ? config.nodeId : "node-" + config.port;
+        this.bindAddress = config.clusterBind;
+        this.port = config.clusterPort;
+        this.authKey = config.key != null ? hmac(config.key, "cluster-auth".getBytes(StandardCharsets.UTF_8)) : null;
+        this.batchNanos = config.relayBatchMillis * 1_000_000L;
+        this.hub = hub;
+        this.metrics = hub.getMetrics();
+        for (InetSocketAddress peer : config.peers) {
+            links.add(new PeerLink(peer));
+        }
+    }
+
+    /**
+     * Starts listening for peers and dialing them.
+     */
+    void start() {
+        if (port > 0) {
+            try {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(bindAddress, port));
+                Thread.ofPlatform().name("cluster-accept").daemon().start(() -> acceptLoop(serverChannel));
+            } catch (IOException e) {
+                Log.error("Could not listen for cluster peers on port " + port + ": " + e.getMessage());
+            }
+        }
+        for (PeerLink link : links) {
+            Thread.ofPlatform().name("cluster-out-" + link.name).daemon().start(link::run);
+        }
+        if (!links.isEmpty()) {
+            Thread.ofPlatform().name("cluster-batcher").daemon().start(this::batchLoop);
+        }
+        Log.info("Cluster node " + nodeId + (port > 0 ? " listening for peers on " + bindAddress.getHostAddress() + ":" + port : "")
+                + ", relaying to " + links.size() + " peer(s)" + (authKey != null ? ", peers authenticated with --key" : ""));
+    }
+
+    /**
+     * Relays a chat message said on this node.
+     * @param room The room it was said in.
+     * @param message The message as broadcast, "name: text".
+     */
+    public void publishChat(String room, String message) {
+        publish(KIND_CHAT, room, message);
+    }
+
+    /**
+     * Relays a join or leave on this node.
+     * @param room The room.
+     * @param name Who joined or left.
+     * @param joined true for a join.
+     */
+    public void publishPresence(String room, String name, boolean joined) {
+        publish(joined ? KIND_JOIN : KIND_LEAVE, room, name);
+    }
+
+    private void publish(byte kind, String room, String text) {
+        if (links.isEmpty()) {
+            return;
+        }
+        if (!events.offer(new Event(kind, nowMicros(), room, text))) {
+            metrics.onRelayDropped(1);
+        }
+    }
+
+    private static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+    }
+
+    // --- Sending ---
+
+    // Collects events for up to batchNanos after the first one and hands every link the same encoded frame
+    private void batchLoop() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH_EVENTS);
+        while (true) {
+            try {
+                Event event = events.take();
+                long bytes = 0;
+                long deadline = System.nanoTime() + batchNanos;
+                while (event != null) {
+                    batch.add(event);
+                    bytes += event.room().length() + 3L * event.text().length(); // UTF-8 worst case for the text
+                    if (batch.size() == MAX_BATCH_EVENTS || bytes >= MAX_BATCH_BYTES) {
+                        break;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    event = wait > 0 ? events.poll(wait, TimeUnit.NANOSECONDS) : events.poll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            ByteBuffer frame = encode(batch);
+            if (frame != null) {
+                for (PeerLink link : links) {
+                    link.offer(frame.duplicate());
+                }
+                metrics.onRelaySent(batch.size());
+            }
+            batch.clear();
+        }
+    }
+
+    private ByteBuffer encode(List<Event> batch) {
+        byte[] origin = nodeId.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> rooms = new ArrayList<>(batch.size());
+        List<byte[]> texts = new ArrayList<>(batch.size());
+        int length = 4 + origin.length + 4;
+        int count = 0;
+        for (Event event : batch) {
+            byte[] room = event.room().getBytes(StandardCharsets.UTF_8);
+            byte[] text = event.text().getBytes(StandardCharsets.UTF_8);
+            int eventLength = 1 + 8 + 8 + 4 + room.length + 4 + text.length;
+            if (length + eventLength > Frame.MAX_PAYLOAD_LENGTH) {
+                Log.warn("Not relaying an event of " + text.length + " bytes from " + event.room() + ": too big for a relay frame");
+                metrics.onRelayDropped(1);
+                rooms.add(null);
+                texts.add(null);
+                continue;
+            }
+            rooms.add(room);
+            texts.add(text);
+            length += eventLength;
+            count++;
+        }
+        if (count == 0) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.putInt(origin.length).put(origin).putInt(count);
+        for (int i = 0; i < batch.size(); i++) {
+            if (texts.get(i) == null) {
+                continue;
+            }
+            Event event = batch.get(i);
+            payload.put(event.kind()).putLong(++nextId).putLong(event.sentAtMicros())
+                    .putInt(rooms.get(i).length).put(rooms.get(i))
+                    .putInt(texts.get(i).length).put(texts.get(i));
+        }
+        return FrameEncoder.encodeShared(Frame.TYPE_RELAY, (byte) 0, payload.array());
+    }
+
+    // One outbound link: a queue of encoded batches and the thread that dials the peer and writes them
+    private final class PeerLink {
+        private final InetSocketAddress address;
+        private final String name; // host:port, for thread names and logs
+        private final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(LINK_QUEUE_BATCHES);
+        // Batches of the write that was in progress when the link broke; sent again, receivers drop duplicates
+        private final ByteBuffer[] inFlight = new ByteBuffer[WRITE_BATCH];
+        private int inFlightCount = 0;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        // Called by the batcher only, so making room can't race with another offer
+        void offer(ByteBuffer frame) {
+            while (!queue.offer(frame)) {
+                if (queue.poll() != null) {
+                    metrics.onRelayDropped(1); // Counted in batches here; the peer is behind anyway
+                }
+            }
+        }
+
+        void run() {
+            long backoffMillis = INITIAL_BACKOFF_MILLIS;
+            List<ByteBuffer> taken = new ArrayList<>(WRITE_BATCH);
+            while (true) {
+                // Resolved on every attempt, so a peer that moves is found again
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(address.getHostString(), address.getPort()))) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    String peerId = introduce(channel);
+                    Log.info("Cluster link to " + name + " (" + peerId + ") is up");
+                    backoffMillis = INITIAL_BACKOFF_MILLIS;
+                    if (inFlightCount > 0) {
+                        write(channel);
+                    }
+                    while (true) {
+                        taken.add(queue.take());
+                        queue.drainTo(taken, WRITE_BATCH - 1);
+                        for (ByteBuffer frame : taken) {
+                            inFlight[inFlightCount++] = frame;
+                        }
+                        taken.clear();
+                        write(channel);
+                    }
+                } catch (IOException e) {
+                    Log.warn("Cluster link to " + name + " failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+            }
+        }
+
+        // Writes the in-flight batches in one gathering write, from their start, and forgets them once written
+        private void write(SocketChannel channel) throws IOException {
+            ByteBuffer[] views = new ByteBuffer[inFlightCount];
+            for (int i = 0; i < inFlightCount; i++) {
+                views[i] = inFlight[i].duplicate();
+            }
+            ByteBuffer last = views[views.length - 1];
+            while (last.hasRemaining()) {
+                channel.write(views);
+            }
+            Arrays.fill(inFlight, 0, inFlightCount, null);
+            inFlightCount = 0;
+        }
+    }
+
+    // Dialing side of the handshake: answers the peer's challenge and returns the peer's node id
+    private String introduce(SocketChannel channel) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(1024);
+        Map<String, String> greeting = Hello.parse(readHandshake(channel, decoder, Frame.TYPE_HELLO));
+        byte[] challenge = decodeBase64(greeting.getOrDefault("challenge", ""));
+        String hello = "version=" + Hello.PROTOCOL_VERSION + "\nnode=" + nodeId;
+        if (authKey != null) {
+            hello += "\nmac=" + Base64.getEncoder().encodeToString(mac(challenge, nodeId));
+        }
+        writeHandshake(channel, Frame.TYPE_HELLO, hello);
+        Map<String, String> welcome = Hello.parse(readHandshake(channel, decoder, Frame.TYPE_WELCOME));
+        if (!"accept".equals(welcome.get("status"))) {
+            throw new ProtocolException("rejected: " + welcome.getOrDefault("reason", "no reason given"));
+        }
+        return welcome.getOrDefault("name", "?");
+    }
+
+    // --- Receiving ---
+
+    private void acceptLoop(ServerSocketChannel serverChannel) {
+        try (serverChannel) {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                String peer = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+                Thread.ofPlatform().name("cluster-in-" + peer).daemon().start(() -> readLoop(channel, peer));
+            }
+        } catch (IOException e) {
+            Log.error("Cluster listener stopped: " + e.getMessage());
+        }
+    }
+
+    private void readLoop(SocketChannel channel, String peer) {
+        FrameDecoder decoder = new FrameDecoder(64 * 1024);
+        try (channel) {
+            String origin = admit(channel, decoder, peer);
+            if (origin == null) {
+                return;
+            }
+            Log.info("Cluster peer " + origin + " connected from " + peer);
+            while (decoder.readFrom(channel) != -1) {
+                Frame frame;
+                while ((frame = decoder.next()) != null) {
+                    if (frame.getType() == Frame.TYPE_RELAY) {
+                        onBatch(frame.getPayload().duplicate(), origin);
+                    } else {
+                        Log.warn("Ignoring frame of type " + frame.getType() + " from cluster peer " + peer);
+                    }
+                }
+            }
+            Log.info("Cluster peer " + peer + " disconnected");
+        } catch (IOException | RuntimeException e) {
+            // A malformed batch ends up here too; the peer dials again and resends
+            Log.warn("Cluster link from " + peer + " failed: " + e.getMessage());
+        }
+    }
+
+    // Listening side of the handshake: challenges the peer and returns its node id, or null if it was rejected
+    private String admit(SocketChannel channel, FrameDecoder decoder, String peer) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        writeHandshake(channel, Frame.TYPE_HELLO, "version=" + Hello.PROTOCOL_VERSION
+                + "\nchallenge=" + Base64.getEncoder().encodeToString(challenge));
+        Map<String, String> hello = Hello.parse(readHandshake(channel, decoder, Frame.TYPE_HELLO));
+        String node = hello.getOrDefault("node", "");
+        String reason = null;
+        if (!String.valueOf(Hello.PROTOCOL_VERSION).equals(hello.get("version"))) {
+            reason = "Unsupported protocol version " + hello.get("version");
+        } else if (node.isEmpty()) {
+            reason = "A node id is required";
+        } else if (node.equals(nodeId)) {
+            reason = "That is this node's own id, check --node-id and --peers";
+        } else if (authKey != null && !MessageDigest.isEqual(mac(challenge, node), decodeBase64(hello.getOrDefault("mac", "")))) {
+            reason = "Authentication failed, is --key the same on every node?";
+        }
+        if (reason != null) {
+            Log.warn("Rejected cluster peer " + peer + (node.isEmpty() ? "" : " (" + node + ")") + ": " + reason);
+            writeHandshake(channel, Frame.TYPE_WELCOME, Hello.reject(reason));
+            return null;
+        }
+        writeHandshake(channel, Frame.TYPE_WELCOME, Hello.accept(nodeId, List.of()));
+        return node;
+    }
+
+    private void onBatch(ByteBuffer in, String peerId) {
+        String origin = readString(in);
+        if (!origin.equals(peerId)) {
+            // Nodes only relay their own events, so this is a peer speaking for another node
+            Log.warn("Ignoring relay for " + origin + " from cluster peer " + peerId);
+            return;
+        }
+        AtomicLong seen = lastSeen.computeIfAbsent(origin, id -> new AtomicLong(Long.MIN_VALUE));
+        int count = in.getInt();
+        long now = nowMicros();
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            long id = in.getLong();
+            long sentAtMicros = in.getLong();
+            String room = readString(in);
+            String text = readString(in);
+            if (seen.getAndAccumulate(id, Math::max) >= id) {
+                metrics.onRelayDuplicate();
+                continue;
+            }
+            metrics.onRelayReceived(Math.max(0, now - sentAtMicros) * 1000);
+            switch (kind) {
+                case KIND_CHAT -> deliverChat(room, text);
+                case KIND_JOIN -> hub.getPresence().applyRemote(room, text, true);
+                case KIND_LEAVE -> hub.getPresence().applyRemote(room, text, false);
+                default -> Log.warn("Ignoring relay event of unknown kind " + kind + " from " + origin);
+            }
+        }
+    }
+
+    // Like a local chat broadcast, minus the journal, which only the origin node writes
+    private void deliverChat(String roomName, String message) {
+        Room room = hub.getRooms().get(roomName);
+        if (room == null) {
+            return; // Nobody in that room on this node
+        }
+        long start = System.nanoTime();
+        ByteBuffer frame = FrameEncoder.encodeShared(message);
+        MessageHistory history = room.getHistory();
+        if (history != null) {
+            history.append(frame);
+        }
+        int recipients = ChatSession.fanOut(room.getMembers(), frame, hub.getCrypto());
+        metrics.onBroadcast(recipients, System.nanoTime() - start);
+    }
+
+    // --- Handshake helpers ---
+
+    // Reads the next handshake frame, which has to be of the given type and arrive within HANDSHAKE_TIMEOUT_MILLIS
+    private static String readHandshake(SocketChannel channel, FrameDecoder decoder, byte type) throws IOException {
+        channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        // The socket's stream honours the timeout, reads on the channel itself would wait forever
+        ReadableByteChannel in = Channels.newChannel(channel.socket().getInputStream());
+        Frame frame;
+        while ((frame = decoder.next()) == null) {
+            if (decoder.readFrom(in) == -1) {
+                throw new EOFException("Connection closed during the cluster handshake");
+            }
+        }
+        if (frame.getType() != type) {
+            throw new ProtocolException("Expected a frame of type " + type + " in the cluster handshake, got " + frame.getType());
+        }
+        return frame.text();
+    }
+
+    private static void writeHandshake(SocketChannel channel, byte type, String payload) throws IOException {
+        ByteBuffer frame = FrameEncoder.encode(type, (byte) 0, payload.getBytes(StandardCharsets.UTF_8));
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private static byte[] decodeBase64(String value) throws ProtocolException {
+        try {
+            return Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException("Bad Base64 in the cluster handshake");
+        }
+    }
+
+    private byte[] mac(byte[] challenge, String node) {
+        byte[] id = node.getBytes(StandardCharsets.UTF_8);
+        byte[] message = Arrays.copyOf(challenge, challenge.length + id.length);
+        System.arraycopy(id, 0, message, challenge.length, id.length);
+        return hmac(authKey, message);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] message) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac.doFinal(message);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length in relay batch: " + length);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+// A single client connection, independent of the engine (threads or NIO) that drives it
+public interface Connection {
+
+    /**
+     * @return The remote host address of this connection, used for logging.
+     */
+    String getAddress();
+
+    /**
+     * Queues an encoded frame for this client. Never blocks on the network; the connection's own
+     * writer sends it, and a full queue is handled by the configured SlowConsumerPolicy.
+     * Write errors surface in the writer, which closes the connection.
+     * @param frame The frame, as produced by FrameEncoder. The connection owns it from now on.
+     */
+    void send(ByteBuffer frame);
+
+    /**
+     * @return The queue of frames waiting to be written, for depth and drop counters.
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * @return true once the client has sent encrypted frames; it then gets encrypted frames back.
+     */
+    boolean isEncrypted();
+
+    /**
+     * Marks this client as one that talks to the server with the shared key.
+     * @param encrypted Whether frames for this client should be encrypted.
+     */
+    void setEncrypted(boolean encrypted);
+
+    /**
+     * Compresses every frame written from now on (FLAG_COMPRESSED), once the client has asked for it.
+     * The connection's writer does the compressing, because the deflate stream must stay in write order.
+     */
+    void enableCompression();
+
+    /**
+     * @return true while the connection has not been closed.
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection. Calling this more than once is harmless.
+     */
+    void close();
+}
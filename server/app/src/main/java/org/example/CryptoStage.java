@@ -0,0 +1,154 @@
+package org.example;
+
+import ai.gemini.SimpleAeadService;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Encryption stage for clients that talk to the server with the shared key (--key).
+ *
+ * AES/GCM work runs on a small pool of worker threads instead of the I/O threads. Each connection gets
+ * its own lane on that pool, which runs the connection's tasks one at a time and in submission order,
+ * so a ChatSession still sees its frames in the order they arrived and never from two threads at once.
+ *
+ * Broadcasts are encrypted once per room message (there is a single key, so every encrypted member
+ * of a room gets the same ciphertext) and shared between recipients like plaintext frames are.
+ */
+public final class CryptoStage {
+    private static final int LANE_BATCH = 64; // Tasks a lane runs before giving other lanes a turn
+
+    private final SimpleAeadService aead;
+    private final ExecutorService workers;
+
+    // Decrypted payloads land here before they become Strings; grows to the largest message seen per thread
+    private static final ThreadLocal<ByteBuffer> PLAINTEXT = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    /**
+     * @param key The AES-256 key shared with the clients (32 bytes).
+     * @param threads Number of worker threads.
+     */
+    public CryptoStage(byte[] key, int threads) {
+        this.aead = new SimpleAeadService(key);
+        this.workers = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("crypto-", 0).daemon().factory());
+    }
+
+    /**
+     * @return A new executor that runs its tasks on the worker pool, strictly one after another.
+     */
+    public Executor newLane() {
+        return new Lane();
+    }
+
+    /**
+     * Decrypts and authenticates the payload of an encrypted text frame.
+     * @param payload Nonce + Ciphertext + Tag, as sent by the client.
+     * @return The message.
+     * @throws Exception If the payload was tampered with or encrypted with another key.
+     */
+    public String decryptText(ByteBuffer payload) throws Exception {
+        int length = SimpleAeadService.decryptedLength(payload.remaining());
+        ByteBuffer plaintext = PLAINTEXT.get();
+        if (plaintext.capacity() < length) {
+            plaintext = ByteBuffer.allocate(Math.max(length, plaintext.capacity() * 2));
+            PLAINTEXT.set(plaintext);
+        }
+        plaintext.clear();
+        aead.decrypt(payload.duplicate(), plaintext);
+        return new String(plaintext.array(), 0, plaintext.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypts one plaintext frame for many recipients.
+     * @param frame A whole frame, header included, e.g. from FrameEncoder.encodeShared(); its position is not changed.
+     * @return A read-only heap buffer holding the encrypted frame; hand out duplicate() views of it.
+     */
+    public ByteBuffer encryptShared(ByteBuffer frame) {
+        ByteBuffer encrypted = ByteBuffer.allocate(encryptedSize(frame.duplicate()));
+        encryptFrames(frame, encrypted);
+        return encrypted.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Encrypts a buffer of back-to-back plaintext frames, e.g. a history replay, for a single recipient.
+     * @param frames The frames; their position is not changed.
+     * @return A heap buffer holding the same frames, encrypted.
+     */
+    public ByteBuffer encryptFrames(ByteBuffer frames) {
+        ByteBuffer encrypted = ByteBuffer.allocate(encryptedSize(frames.duplicate()));
+        encryptFrames(frames, encrypted);
+        return encrypted.flip();
+    }
+
+    private void encryptFrames(ByteBuffer frames, ByteBuffer dst) {
+        ByteBuffer src = frames.duplicate();
+        while (src.remaining() >= Frame.HEADER_LENGTH) {
+            int start = src.position();
+            int length = src.getInt(start);
+            byte type = src.get(start + 4);
+            byte flags = src.get(start + 5);
+            src.limit(start + Frame.HEADER_LENGTH + length).position(start + Frame.HEADER_LENGTH);
+
+            dst.putInt(SimpleAeadService.encryptedLength(length)).put(type).put((byte) (flags | Frame.FLAG_ENCRYPTED));
+            try {
+                aead.encrypt(src, dst); // Consumes the payload
+            } catch (Exception e) {
+                // Only happens if dst was sized wrongly or AES/GCM is missing, both bugs
+                throw new IllegalStateException("Could not encrypt frame", e);
+            }
+            src.limit(frames.limit());
+        }
+    }
+
+    // Size of the given frames once every payload is encrypted
+    private static int encryptedSize(ByteBuffer frames) {
+        int size = 0;
+        int position = frames.position();
+        while (frames.limit() - position >= Frame.HEADER_LENGTH) {
+            int length = frames.getInt(position);
+            size += Frame.HEADER_LENGTH + SimpleAeadService.encryptedLength(length);
+            position += Frame.HEADER_LENGTH + length;
+        }
+        return size;
+    }
+
+    // Serial executor on top of the shared pool. At most one worker runs a lane at any time.
+    private final class Lane implements Executor, Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < LANE_BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Crypto task failed: " + e.getMessage());
+                }
+            }
+            scheduled.set(false);
+            // A task may have been added after the last poll but before the flag was cleared
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Builds frames in the format described in Frame
+public final class FrameEncoder {
+
+    private FrameEncoder() {
+    }
+
+    /**
+     * Encodes a text frame.
+     * @param message The message, sent as UTF-8.
+     * @return A buffer holding the whole frame, ready to be written.
+     */
+    public static ByteBuffer encodeText(String message) {
+        return encode(Frame.TYPE_TEXT, (byte) 0, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a text frame once for many recipients.
+     * The frame lives in a read-only buffer: give every recipient its own duplicate() view, so the
+     * bytes are encoded once however big the room is. It is a heap buffer, because a broadcast's frame
+     * lives only until the last writer has sent it: a direct buffer per message would cost a native
+     * allocation and leave a Cleaner behind, while a short-lived heap buffer dies young almost for free.
+     * @param message The message, sent as UTF-8.
+     * @return A read-only buffer holding the whole frame.
+     */
+    public static ByteBuffer encodeShared(String message) {
+        return encodeShared(Frame.TYPE_TEXT, (byte) 0, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a frame once for many recipients into a read-only heap buffer.
+     * @param type The frame type.
+     * @param flags The frame flags.
+     * @param payload The payload bytes.
+     * @return A read-only buffer holding the whole frame; hand out duplicate() views of it.
+     */
+    public static ByteBuffer encodeShared(byte type, byte flags, byte[] payload) {
+        checkLength(payload.length);
+        return encode(type, flags, payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a frame into a new heap buffer.
+     * @param type The frame type.
+     * @param flags The frame flags.
+     * @param payload The payload bytes.
+     * @return A buffer holding the whole frame, ready to be written.
+     */
+    public static ByteBuffer encode(byte type, byte flags, byte[] payload) {
+        checkLength(payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_LENGTH + payload.length);
+        frame.putInt(payload.length).put(type).put(flags).put(payload);
+        return frame.flip();
+    }
+
+    /**
+     * Appends a frame to a caller-provided buffer, so that several frames can be batched into one write.
+     * Nothing is written if the frame does not fit.
+     * @param type The frame type.
+     * @param flags The frame flags.
+     * @param payload The payload; its position is not changed.
+     * @param dst The buffer to append to (in write mode).
+     * @return true if the frame was written, false if dst did not have enough room.
+     */
+    public static boolean encode(byte type, byte flags, ByteBuffer payload, ByteBuffer dst) {
+        int length = payload.remaining();
+        checkLength(length);
+        if (dst.remaining() < Frame.HEADER_LENGTH + length) {
+            return false;
+        }
+        dst.putInt(length).put(type).put(flags).put(payload.duplicate());
+        return true;
+    }
+
+    private static void checkLength(int length) {
+        if (length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame payload too large: " + length + " bytes (max " + Frame.MAX_PAYLOAD_LENGTH + ")");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.example;
+
+// When the message journal forces written records to disk
+public enum FsyncPolicy {
+    // After every batch the writer drains, before taking the next one
+    ALWAYS,
+    // At most once per configured interval
+    INTERVAL,
+    // Leave it to the OS
+    NEVER;
+
+    public static FsyncPolicy fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
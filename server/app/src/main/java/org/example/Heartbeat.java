@@ -0,0 +1,85 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Liveness check for one connection: PINGs it after a quiet spell and closes it once it has been silent
+ * for the idle timeout, so a peer that vanished without a FIN stops costing broadcasts within seconds.
+ *
+ * Hearing from the client only stores a timestamp; the timer is not touched per frame. Instead the one
+ * timeout this connection has on the wheel looks at that timestamp when it fires and re-arms itself for
+ * the next deadline, so a connection costs one O(1) timer operation per heartbeat interval at most.
+ */
+final class Heartbeat implements Runnable {
+    // Shared by every connection; each send gets its own duplicate()
+    private static final ByteBuffer PING = FrameEncoder.encodeShared(Frame.TYPE_PING, (byte) 0, new byte[0]);
+
+    private final Connection connection;
+    private final TimerWheel wheel;
+    private final ServerMetrics metrics;
+    private final long pingNanos; // Silence before a PING, 0 = never ping
+    private final long idleNanos; // Silence before closing, 0 = never close
+    private volatile long lastHeard = System.nanoTime();
+    private volatile TimerWheel.Timeout timeout;
+    private volatile boolean stopped = false;
+
+    Heartbeat(Connection connection, TimerWheel wheel, ServerMetrics metrics, long pingNanos, long idleNanos) {
+        this.connection = connection;
+        this.wheel = wheel;
+        this.metrics = metrics;
+        this.pingNanos = pingNanos;
+        this.idleNanos = idleNanos;
+    }
+
+    void start() {
+        arm(pingNanos > 0 ? pingNanos : idleNanos);
+    }
+
+    /**
+     * Called for every frame received from the client.
+     */
+    void onHeard() {
+        lastHeard = System.nanoTime();
+    }
+
+    void stop() {
+        stopped = true;
+        TimerWheel.Timeout timeout = this.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    // Runs on the wheel thread
+    @Override
+    public void run() {
+        if (stopped || !connection.isOpen()) {
+            return;
+        }
+        long silent = System.nanoTime() - lastHeard;
+        if (idleNanos > 0 && silent >= idleNanos) {
+            Log.info("Closing idle connection " + connection.getAddress() + " (silent for " + silent / 1_000_000 + " ms)");
+            metrics.onIdleTimeout();
+            connection.close();
+            return;
+        }
+        long next;
+        if (pingNanos > 0 && silent >= pingNanos) {
+            connection.send(PING.duplicate());
+            next = pingNanos; // Ping again if it stays quiet, until the idle timeout
+        } else {
+            next = (pingNanos > 0 ? pingNanos : idleNanos) - silent;
+        }
+        if (idleNanos > 0) {
+            next = Math.min(next, idleNanos - silent);
+        }
+        arm(next);
+    }
+
+    private void arm(long delayNanos) {
+        timeout = wheel.schedule(this, delayNanos);
+        if (stopped) {
+            timeout.cancel(); // stop() raced with re-arming
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.example;
+
+import java.util.function.Supplier;
+
+/**
+ * The server's logger: level-gated and asynchronous.
+ *
+ * Lines below the current level cost a volatile read and nothing else. The Supplier overloads build the
+ * message only if it will be logged, so per-message logging at DEBUG leaves no trace at INFO. Lines that
+ * pass go to an AsyncAppender, so logging never waits on the console.
+ */
+public final class Log {
+    private static final AsyncAppender appender = new AsyncAppender(8192);
+    private static volatile LogLevel level = LogLevel.INFO;
+
+    private Log() {
+    }
+
+    public static void setLevel(LogLevel newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(LogLevel at) {
+        return at.compareTo(level) >= 0;
+    }
+
+    /**
+     * @return Lines thrown away because the writer fell behind, since startup.
+     */
+    public static long dropped() {
+        return appender.dropped();
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(LogLevel.DEBUG)) {
+            log(LogLevel.DEBUG, message.get(), null);
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(LogLevel.INFO)) {
+            log(LogLevel.INFO, message, null);
+        }
+    }
+
+    public static void info(Supplier<String> message) {
+        if (isEnabled(LogLevel.INFO)) {
+            log(LogLevel.INFO, message.get(), null);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(LogLevel.WARN)) {
+            log(LogLevel.WARN, message, null);
+        }
+    }
+
+    public static void error(String message) {
+        log(LogLevel.ERROR, message, null);
+    }
+
+    /**
+     * @param message What went wrong.
+     * @param error Printed with its stack trace.
+     */
+    public static void error(String message, Throwable error) {
+        log(LogLevel.ERROR, message, error);
+    }
+
+    private static void log(LogLevel at, String message, Throwable error) {
+        appender.append(new AsyncAppender.Entry(at, System.currentTimeMillis(), Thread.currentThread().getName(), message, error));
+    }
+}
@@ -0,0 +1,17 @@
+package org.example;
+
+// How much the server logs; each level includes the ones below it
+public enum LogLevel {
+    // Every message, command and broadcast; builds strings per message, so only for debugging
+    DEBUG,
+    // Connections, handshakes and startup
+    INFO,
+    // Misbehaving clients and recoverable errors
+    WARN,
+    // Failures that take down a connection or a server component
+    ERROR;
+
+    public static LogLevel fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
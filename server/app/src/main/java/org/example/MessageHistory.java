@@ -0,0 +1,182 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The last messages of one room, kept as encoded frames in a fixed-size off-heap ring buffer.
+ *
+ * Memory is bounded by the byte capacity and the slot count chosen up front, however busy the room is:
+ * frame bytes live in one direct buffer and the per-message bookkeeping in primitive arrays, so storing
+ * a message allocates nothing. Appends take a short write lock; replays copy under an optimistic read
+ * and only fall back to a read lock if an append raced with them, so they never hold up broadcasts.
+ */
+public class MessageHistory {
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int maxMessages;
+
+    // Slot i describes one stored frame; slots are used circularly starting at head
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] sequences;
+
+    private boolean retired = false; // The ring went to another room, see retire()
+    private int head = 0; // Slot of the oldest message
+    private int count = 0;
+    private int writePos = 0; // Next free byte in the ring
+    private int usedBytes = 0;
+    private long nextSequence = 0;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * @param maxMessages How many messages to keep at most.
+     * @param capacityBytes How many frame bytes to keep at most; older messages are evicted first.
+     */
+    public MessageHistory(int maxMessages, int capacityBytes) {
+        this(maxMessages, ByteBuffer.allocateDirect(Math.max(capacityBytes, 0)));
+    }
+
+    /**
+     * @param maxMessages How many messages to keep at most.
+     * @param ring The buffer to keep frames in, e.g. one taken back from another history with retire().
+     *             Its whole capacity is used, and what it holds is overwritten.
+     */
+    public MessageHistory(int maxMessages, ByteBuffer ring) {
+        if (maxMessages <= 0 || ring.capacity() <= 0) {
+            throw new IllegalArgumentException("History size must be positive");
+        }
+        this.ring = ring;
+        this.capacity = ring.capacity();
+        this.maxMessages = maxMessages;
+        this.offsets = new int[maxMessages];
+        this.lengths = new int[maxMessages];
+        this.sequences = new long[maxMessages];
+    }
+
+    /**
+     * Stores a copy of an encoded frame, evicting the oldest messages as needed.
+     * Frames larger than the whole ring are not kept.
+     * @param frame The encoded frame; its position is not changed.
+     */
+    public void append(ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length > capacity) {
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (retired) {
+                return; // Someone still holding the old room; the ring belongs to another room now
+            }
+            while (count == maxMessages || capacity - usedBytes < length) {
+                usedBytes -= lengths[head];
+                head = (head + 1) % maxMessages;
+                count--;
+            }
+            int slot = (head + count) % maxMessages;
+            offsets[slot] = writePos;
+            lengths[slot] = length;
+            sequences[slot] = nextSequence++;
+
+            int first = Math.min(length, capacity - writePos);
+            ring.put(writePos, frame, frame.position(), first);
+            if (first < length) {
+                ring.put(0, frame, frame.position() + first, length - first);
+            }
+            writePos = (writePos + length) % capacity;
+            usedBytes += length;
+            count++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Empties this history for good and hands back its buffer, so that another room's history can reuse it.
+     * Appends made afterwards through this object are ignored and replays return nothing, so a caller
+     * still holding it can't write into or read from the other room's messages.
+     * @return The ring buffer.
+     */
+    public ByteBuffer retire() {
+        long stamp = lock.writeLock();
+        try {
+            retired = true;
+            count = 0;
+            return ring;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return The sequence number the next appended message will get. Remember it when a client joins
+     * and pass it to replayBefore() so the client isn't sent messages it already got live.
+     */
+    public long nextSequence() {
+        long stamp = lock.tryOptimisticRead();
+        long sequence = nextSequence;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                sequence = nextSequence;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Copies the stored messages older than the given sequence number, oldest first.
+     * @param beforeSequence Only messages with a lower sequence number are included.
+     * @return A buffer holding the frames back to back, ready to be sent as is, or null if there are none.
+     */
+    public ByteBuffer replayBefore(long beforeSequence) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                ByteBuffer copy = copyOut(beforeSequence);
+                if (lock.validate(stamp)) {
+                    return copy;
+                }
+            } catch (RuntimeException e) {
+                // Saw a half-done append; retry under the read lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return copyOut(beforeSequence);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Stored messages form one contiguous (possibly wrapping) byte range starting at the oldest slot
+    private ByteBuffer copyOut(long beforeSequence) {
+        int total = 0;
+        int n = count;
+        for (int i = 0; i < n; i++) {
+            int slot = (head + i) % maxMessages;
+            if (sequences[slot] >= beforeSequence) {
+                break;
+            }
+            total += lengths[slot];
+        }
+        if (total == 0) {
+            return null;
+        }
+        if (total > capacity) {
+            throw new IllegalStateException("Inconsistent history snapshot"); // Only possible in an optimistic read
+        }
+        int start = offsets[head];
+        ByteBuffer copy = ByteBuffer.allocate(total);
+        int first = Math.min(total, capacity - start);
+        copy.put(0, ring, start, first);
+        if (first < total) {
+            copy.put(first, ring, 0, total - first);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,412 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Durable, append-only log of chat messages.
+ *
+ * Records are written into memory-mapped segment files named after the id of their first record.
+ * A segment is rotated once it is full, and only the newest maxSegments are kept. Every
+ * INDEX_INTERVAL-th record is added to a sparse in-memory index, so replaying "messages since id X"
+ * jumps close to X and scans at most INDEX_INTERVAL records to get there. The index is rebuilt by
+ * scanning the segments on startup.
+ *
+ * Broadcasting threads only queue messages, and get the message's id back right away so it can go out
+ * with the broadcast. A single writer thread drains the queue in batches, copies the batch into the
+ * mapped segment and then fsyncs according to the FsyncPolicy, so disk latency never shows up on the
+ * broadcast path. Ids increase in queue order; a record the writer fails to write leaves a gap.
+ *
+ * Record layout: [int bodyLength][long id][long timestampMillis][short roomLength][room][text], all UTF-8.
+ * A bodyLength of 0 marks the end of the written part of a segment.
+ */
+public final class MessageJournal {
+    private static final int INDEX_INTERVAL = 64;
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 2;
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BATCH_SIZE = 512;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+
+    // Oldest first. Readers walk this list while the writer appends to it
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<PendingRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+
+    private final Object appendLock = new Object(); // Keeps ids in queue order
+    private long nextId = 1; // Guarded by appendLock
+    private long lastForceMillis = System.currentTimeMillis();
+    private volatile boolean running = true; // Set under appendLock, read without it by the writer
+
+    // Called for every record a replay finds
+    public interface RecordVisitor {
+        void visit(long id, long timestampMillis, String room, String text);
+    }
+
+    private record PendingRecord(long id, long timestampMillis, String room, String text) {
+    }
+
+    // Queued by close() to wake the writer. Interrupting it instead could land in the middle of mapping
+    // a new segment, which closes the channel and loses the batch.
+    private static final PendingRecord CLOSE = new PendingRecord(0, 0, "", "");
+
+    /**
+     * Opens (or creates) the journal in a directory and starts its writer thread.
+     * @param directory Where the segment files live.
+     * @param segmentBytes The size of one segment file; at least 1 MiB.
+     * @param maxSegments How many segments to keep before deleting the oldest.
+     * @param fsyncPolicy When to force records to disk.
+     * @param fsyncIntervalMillis The interval for FsyncPolicy.INTERVAL, which must be positive.
+     * @throws IOException If the directory or existing segments can't be read.
+     */
+    public MessageJournal(Path directory, int segmentBytes, int maxSegments, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        if (segmentBytes < 1024 * 1024) {
+            throw new IllegalArgumentException("Journal segments must be at least 1 MiB");
+        }
+        if (fsyncPolicy == FsyncPolicy.INTERVAL && fsyncIntervalMillis <= 0) {
+            // The writer waits this long for records, so it would spin
+            throw new IllegalArgumentException("Journal fsync interval must be positive");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+
+        Files.createDirectories(directory);
+        recover();
+
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Flush what is still queued when the server is stopped with Ctrl+C
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "journal-shutdown"));
+    }
+
+    /**
+     * Queues a message for the journal without blocking. If the writer has fallen too far behind, or the
+     * journal is closed, the message is dropped and counted instead.
+     * @param room The room the message was said in.
+     * @param text The message as broadcast.
+     * @return The id the message will be journaled under, or 0 if it was dropped.
+     */
+    public long append(String room, String text) {
+        long timestampMillis = System.currentTimeMillis();
+        synchronized (appendLock) {
+            if (running && queue.offer(new PendingRecord(nextId, timestampMillis, room, text))) {
+                return nextId++;
+            }
+        }
+        dropped.increment();
+        return 0;
+    }
+
+    /**
+     * Replays the records of one room with an id greater than afterId, oldest first.
+     * Only records the writer has finished are visible.
+     * @param afterId Return records after this id (0 for everything still kept).
+     * @param room Only records of this room are returned.
+     * @param maxRecords Stop after this many records.
+     * @param visitor Receives the records.
+     * @return The id of the last record visited, or afterId if there were none.
+     */
+    public long replaySince(long afterId, String room, int maxRecords, RecordVisitor visitor) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        long lastId = afterId;
+        int visited = 0;
+        for (Segment segment : segments) {
+            if (visited >= maxRecords) {
+                break;
+            }
+            if (segment.lastId <= afterId) {
+                continue; // Everything in here is older
+            }
+            ByteBuffer data = segment.buffer.duplicate();
+            int limit = segment.committed;
+            int position = segment.seek(afterId);
+            while (position < limit && visited < maxRecords) {
+                int bodyLength = data.getInt(position);
+                long id = data.getLong(position + 4);
+                int roomLength = data.getShort(position + 20);
+                if (id > afterId && roomLength == roomBytes.length && regionEquals(data, position + RECORD_HEADER, roomBytes)) {
+                    int textStart = position + RECORD_HEADER + roomLength;
+                    int textLength = bodyLength - (RECORD_HEADER - 4) - roomLength;
+                    byte[] text = new byte[textLength];
+                    data.get(textStart, text);
+                    visitor.visit(id, data.getLong(position + 12), room, new String(text, StandardCharsets.UTF_8));
+                    lastId = id;
+                    visited++;
+                }
+                position += 4 + bodyLength;
+            }
+        }
+        return lastId;
+    }
+
+    public long droppedRecords() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the writer after it has written and forced everything already queued.
+     */
+    public void close() {
+        synchronized (appendLock) {
+            if (!running) {
+                return;
+            }
+            running = false; // Nothing is queued after this, so the writer drains everything that was
+        }
+        queue.offer(CLOSE); // If the queue is full the writer isn't waiting anyway
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = fsyncPolicy == FsyncPolicy.INTERVAL ? fsyncIntervalMillis : 1000;
+                PendingRecord first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    batch.remove(CLOSE);
+                    writeBatch(batch);
+                }
+                maybeForce(first != null);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        forceCurrent();
+    }
+
+    // The records before a failure are already in the journal, so the rest of the batch is dropped
+    // rather than retried: writing the batch again would store those records twice under new ids.
+    private void writeBatch(List<PendingRecord> batch) {
+        int written = 0;
+        try {
+            for (PendingRecord record : batch) {
+                write(record);
+                written++;
+            }
+        } catch (IOException e) {
+            dropped.add(batch.size() - written);
+            Log.error("Journal write failed, dropped " + (batch.size() - written) + " message(s): " + e.getMessage());
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void write(PendingRecord record) throws IOException {
+        byte[] room = record.room().getBytes(StandardCharsets.UTF_8);
+        byte[] text = record.text().getBytes(StandardCharsets.UTF_8);
+        int recordLength = RECORD_HEADER + room.length + text.length;
+        if (recordLength + 4 > segmentBytes || room.length > Short.MAX_VALUE) {
+            dropped.increment();
+            return; // Would never fit in a segment
+        }
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        // Keep 4 bytes free at the end for the zero terminator
+        if (segment == null || segment.committed + recordLength + 4 > segmentBytes) {
+            if (segment != null && fsyncPolicy != FsyncPolicy.NEVER) {
+                force(segment);
+            }
+            segment = createSegment(record.id());
+        }
+
+        long id = record.id();
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.committed;
+        buffer.putLong(position + 4, id);
+        buffer.putLong(position + 12, record.timestampMillis());
+        buffer.putShort(position + 20, (short) room.length);
+        buffer.put(position + RECORD_HEADER, room);
+        buffer.put(position + RECORD_HEADER + room.length, text);
+        // Length last: a record only counts once it is complete, also after a crash
+        buffer.putInt(position, recordLength - 4);
+
+        if (segment.records++ % INDEX_INTERVAL == 0) {
+            segment.addIndexEntry(id, position);
+        }
+        segment.lastId = id;
+        segment.committed = position + recordLength; // Publishes the record to readers
+    }
+
+    private void maybeForce(boolean wroteSomething) {
+        switch (fsyncPolicy) {
+            case ALWAYS -> {
+                if (wroteSomething) {
+                    forceCurrent();
+                }
+            }
+            case INTERVAL -> {
+                long now = System.currentTimeMillis();
+                if (now - lastForceMillis >= fsyncIntervalMillis) {
+                    forceCurrent();
+                    lastForceMillis = now;
+                }
+            }
+            case NEVER -> {
+            }
+        }
+    }
+
+    private void forceCurrent() {
+        if (!segments.isEmpty()) {
+            force(segments.get(segments.size() - 1));
+        }
+    }
+
+    // A failed force must not end the writer thread, or every later append would queue up unwritten.
+    // The records stay in the mapping and the next force tries again.
+    private void force(Segment segment) {
+        try {
+            segment.buffer.force();
+        } catch (UncheckedIOException e) {
+            Log.error("Journal fsync failed: " + e.getMessage());
+        }
+    }
+
+    private Segment createSegment(long baseId) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseId, SEGMENT_SUFFIX));
+        Segment segment = new Segment(baseId, map(file));
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            Files.deleteIfExists(oldest.file(directory));
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    // Maps the existing segments and rebuilds their index and committed position
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseId = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(baseId, map(file));
+            segment.lastId = baseId - 1;
+            int position = 0;
+            while (position + RECORD_HEADER <= segmentBytes) {
+                int bodyLength = segment.buffer.getInt(position);
+                if (bodyLength <= 0 || position + 4 + bodyLength > segmentBytes) {
+                    break;
+                }
+                long id = segment.buffer.getLong(position + 4);
+                if (segment.records++ % INDEX_INTERVAL == 0) {
+                    segment.addIndexEntry(id, position);
+                }
+                segment.lastId = id;
+                position += 4 + bodyLength;
+            }
+            segment.committed = position;
+            segments.add(segment);
+            nextId = Math.max(nextId, segment.lastId + 1);
+        }
+        if (!segments.isEmpty()) {
+            Log.info("Journal recovered " + segments.size() + " segment(s), next message id " + nextId);
+        }
+    }
+
+    private static boolean regionEquals(ByteBuffer data, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (data.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One mapped segment file. Written only by the writer thread; committed and lastId publish progress to readers.
+    private static class Segment {
+        final long baseId;
+        final MappedByteBuffer buffer;
+        volatile int committed = 0;
+        volatile long lastId;
+        int records = 0; // Written so far; every INDEX_INTERVAL-th one goes in the index
+
+        // Sparse index: indexIds[i] starts at indexPositions[i]. Grown by the writer, published via indexSize
+        private volatile long[] indexIds = new long[16];
+        private volatile int[] indexPositions = new int[16];
+        private volatile int indexSize = 0;
+
+        Segment(long baseId, MappedByteBuffer buffer) {
+            this.baseId = baseId;
+            this.buffer = buffer;
+            this.lastId = baseId - 1;
+        }
+
+        Path file(Path directory) {
+            return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseId, SEGMENT_SUFFIX));
+        }
+
+        void addIndexEntry(long id, int position) {
+            int size = indexSize;
+            long[] ids = indexIds;
+            int[] positions = indexPositions;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            ids[size] = id;
+            positions[size] = position;
+            indexIds = ids;
+            indexPositions = positions;
+            indexSize = size + 1;
+        }
+
+        // Position of the last indexed record with an id <= afterId, or 0
+        int seek(long afterId) {
+            int size = indexSize;
+            long[] ids = indexIds;
+            int[] positions = indexPositions;
+            int index = Arrays.binarySearch(ids, 0, size, afterId);
+            if (index < 0) {
+                index = -index - 2; // Insertion point minus one
+            }
+            return index < 0 ? 0 : positions[index];
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Serves ServerMetrics at http://127.0.0.1:<port>/metrics for Prometheus. Loopback only, one thread.
+public class MetricsHttpServer {
+    private final HttpServer server;
+
+    /**
+     * @param port The local port to listen on.
+     * @param metrics The metrics to serve.
+     * @throws IOException If the port can't be bound.
+     */
+    public MetricsHttpServer(int port, ServerMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> serve(exchange, metrics));
+        server.setExecutor(Executors.newSingleThreadExecutor(Thread.ofPlatform().name("metrics-http").daemon().factory()));
+    }
+
+    public void start() {
+        server.start();
+        Log.info("Metrics available at http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+    }
+
+    private static void serve(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.example;
+
+// What the server does when a client asks for a name somebody online already has
+public enum NameCollisionPolicy {
+    // Refuse the handshake; the client may try again with another name
+    REJECT,
+    // Accept with a number appended ("alice2"), and tell the client its name in the WELCOME
+    RENAME;
+
+    public static NameCollisionPolicy fromString(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,113 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is online: index from name to connection, filled at handshake.
+ *
+ * A name is reserved with putIfAbsent, so two clients asking for the same name at the same moment can't
+ * both get it, and names differing only in case count as the same. Looking a name up for a direct
+ * message is a single hash lookup, however many clients are connected.
+ */
+public final class NameRegistry {
+    public static final int MAX_NAME_LENGTH = 64; // Room for NameGenerator names, which reach 41
+    private static final int MAX_RENAME_ATTEMPTS = 1000;
+
+    private final ConcurrentHashMap<String, Entry> names = new ConcurrentHashMap<>();
+    private final NameCollisionPolicy policy;
+
+    private record Entry(String name, Connection connection) {
+    }
+
+    public NameRegistry(NameCollisionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Reserves a name for a connection, following the collision policy if someone else has it.
+     * @param name The name the client asked for; must be valid, see isValidName().
+     * @param connection The client asking.
+     * @return The name reserved, which with RENAME may have a number appended, or null if it is taken.
+     */
+    public String reserve(String name, Connection connection) {
+        if (tryReserve(name, connection)) {
+            return name;
+        }
+        if (policy == NameCollisionPolicy.RENAME) {
+            for (int i = 2; i <= MAX_RENAME_ATTEMPTS; i++) {
+                String suffix = Integer.toString(i);
+                String candidate = name.substring(0, Math.min(name.length(), MAX_NAME_LENGTH - suffix.length())) + suffix;
+                if (tryReserve(candidate, connection)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean tryReserve(String name, Connection connection) {
+        Entry entry = names.putIfAbsent(key(name), new Entry(name, connection));
+        return entry == null || entry.connection() == connection;
+    }
+
+    /**
+     * Frees a name, if the connection still holds it.
+     * @param name The name reserved earlier.
+     * @param connection The connection it was reserved for.
+     */
+    public void release(String name, Connection connection) {
+        names.computeIfPresent(key(name), (key, entry) -> entry.connection() == connection ? null : entry);
+    }
+
+    /**
+     * @param name A name, in any case.
+     * @return The connection using it, or null if nobody online has that name.
+     */
+    public Connection lookup(String name) {
+        Entry entry = names.get(key(name));
+        return entry != null ? entry.connection() : null;
+    }
+
+    /**
+     * @param limit The most names to return.
+     * @return Up to limit names of clients online, in no particular order.
+     */
+    public List<String> names(int limit) {
+        List<String> online = new ArrayList<>(Math.min(limit, names.size()));
+        for (Entry entry : names.values()) {
+            if (online.size() == limit) {
+                break;
+            }
+            online.add(entry.name());
+        }
+        return online;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @param name A name sent by a client.
+     * @return true if the name is usable: 1 to MAX_NAME_LENGTH characters without whitespace, so that
+     *         "/msg &lt;name&gt; &lt;text&gt;" can address it.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,391 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Alternative server engine: a small pool of selector event loops (one per core) instead of one thread per client.
+// Every connection is owned by exactly one loop, which does all of its reads and writes.
+public class NioServer {
+    private static final int WRITE_BATCH = 64; // Frames per gathering write
+
+    private final ChatHub hub;
+
+    private final int port;
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    public NioServer(ServerConfig config) {
+        this(config, Runtime.getRuntime().availableProcessors());
+    }
+
+    public NioServer(ServerConfig config, int loopCount) {
+        this.config = config;
+        this.port = config.port;
+        this.hub = new ChatHub(config);
+        this.loops = new EventLoop[loopCount];
+    }
+
+    public ChatHub getHub() {
+        return hub;
+    }
+
+    public void start() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+            }
+            // Accepting is cheap, so the first loop owns the server channel as well as its share of clients
+            serverChannel.configureBlocking(false);
+            loops[0].execute(() -> loops[0].registerAccept(serverChannel));
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            Log.info("Server is listening on port " + port + " (nio, " + loops.length + " event loops)");
+            hub.startCluster();
+
+            for (EventLoop loop : loops) {
+                loop.join();
+            }
+        } catch (IOException ex) {
+            Log.error("Server exception: " + ex.getMessage(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!hub.getAdmission().admit(channel)) {
+                continue; // Over a limit: told so and closed
+            }
+            Log.info("New client connected: " + channel.socket().getInetAddress().getHostAddress());
+            channel.configureBlocking(false);
+            channel.socket().setKeepAlive(true);
+            channel.socket().setTcpNoDelay(true); // Writes are coalesced here already, Nagle would only delay them
+            hub.getMetrics().onAccept();
+
+            // Spread connections round-robin over the loops
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+
+            NioConnection connection = new NioConnection(channel, loop);
+            hub.getConnectedClients().add(connection);
+            loop.execute(connection::register);
+        }
+    }
+
+    // One selector thread. Other threads talk to it only through execute() so that its selector and
+    // connections are never touched concurrently.
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Delayed tasks, only touched by this loop
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        // Runs a task on this loop after a delay. Only call from this loop.
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        void registerAccept(ServerSocketChannel serverChannel) {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                Log.error("Server channel closed before it could be registered: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    // Tasks queued by this loop itself don't wake the selector, so don't block while any are pending
+                    Timer timer = timers.peek();
+                    long timerWait = timer == null ? 0 : timer.deadline() - System.nanoTime();
+                    if (!tasks.isEmpty() || (timer != null && timerWait <= 0)) {
+                        selector.selectNow();
+                    } else if (timer == null) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, (timerWait + 999_999) / 1_000_000)); // Round up to whole ms
+                    }
+                } catch (IOException e) {
+                    Log.error("Selector error on " + getName() + ": " + e.getMessage());
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline() <= now) {
+                    timers.poll().task().run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept((ServerSocketChannel) key.channel());
+                        } catch (IOException e) {
+                            Log.warn("Accept error: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+            }
+        }
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    private class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final String address;
+        private final ChatSession session;
+        private final FrameDecoder decoder = new FrameDecoder();
+        // Filled by any thread, drained only by the owning loop
+        private final OutboundQueue outboundQueue = config.newOutboundQueue();
+        // Frames taken from the queue but not fully written yet: writeBatch[batchStart, batchEnd)
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH];
+        private int batchStart = 0;
+        private int batchEnd = 0;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean urgentFlushScheduled = new AtomicBoolean(); // Coalescing window cut short by coalesceBytes
+        private final long coalesceNanos = config.coalesceMillis * 1_000_000L; // 0 = write as soon as something is queued
+        private long lastWrite = System.nanoTime() - coalesceNanos; // Far enough in the past that the first write never waits
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean encrypted = false;
+        private volatile FrameCompressor compressor; // null until the client asks for compression
+        private SelectionKey key;
+
+        NioConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.address = channel.socket().getInetAddress().getHostAddress();
+            this.session = new ChatSession(this, hub);
+        }
+
+        // Runs on the owning loop
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                close();
+                return;
+            }
+            session.onConnect();
+        }
+
+        // Runs on the owning loop
+        void read() {
+            try {
+                int read = decoder.readFrom(channel);
+                if (read == -1) {
+                    Log.info("Client disconnected gracefully: " + address);
+                    close();
+                    return;
+                }
+                hub.getMetrics().onRead(read);
+                Frame frame;
+                while ((frame = decoder.next()) != null && !closed.get()) {
+                    session.onFrame(frame);
+                }
+            } catch (IOException e) {
+                Log.warn("Client handling error for " + address + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        // Runs on the owning loop, once per burst of send() calls. With coalescing on, a connection that was
+        // written to less than a window ago waits for the rest of that window, so a burst costs one write per
+        // window; a quiet connection is written at once.
+        void flush() {
+            if (coalesceNanos > 0 && batchStart == batchEnd) {
+                long wait = lastWrite + coalesceNanos - System.nanoTime();
+                if (wait > 0 && outboundQueue.queuedBytes() < config.coalesceBytes) {
+                    // flushScheduled stays set until then, so senders don't queue more flush tasks meanwhile
+                    loop.schedule(this::flushDeferred, wait);
+                    return;
+                }
+            }
+            flushScheduled.set(false);
+            write();
+        }
+
+        // Runs on the owning loop when a coalescing window ends
+        private void flushDeferred() {
+            flushScheduled.set(false);
+            write();
+        }
+
+        // Runs on the owning loop when enough bytes piled up during a coalescing window
+        private void flushNow() {
+            urgentFlushScheduled.set(false);
+            write();
+        }
+
+        // Runs on the owning loop. Writes as much as the socket takes, several frames per gathering write,
+        // and asks for OP_WRITE for the rest.
+        void write() {
+            if (closed.get() || key == null) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        Arrays.fill(writeBatch, 0, batchEnd, null); // Don't keep sent frames reachable
+                        batchStart = 0;
+                        batchEnd = outboundQueue.pollBatch(writeBatch);
+                        if (batchEnd == 0) {
+                            break;
+                        }
+                        OutboundQueue.recordWrites(0, batchEnd, 0);
+                        if (compressor != null) {
+                            // The whole batch becomes one compressed buffer, which stays untouched until it has been
+                            // written completely because nothing new is polled before that
+                            writeBatch[0] = compressor.compress(writeBatch, 0, batchEnd);
+                            Arrays.fill(writeBatch, 1, batchEnd, null);
+                            batchEnd = 1;
+                        }
+                    }
+                    long written = channel.write(writeBatch, batchStart, batchEnd - batchStart);
+                    OutboundQueue.recordWrites(1, 0, written);
+                    while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                        batchStart++;
+                    }
+                    lastWrite = System.nanoTime();
+                    if (batchStart < batchEnd) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                Log.warn("Error sending message to client " + address + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            if (closed.get()) {
+                return;
+            }
+            if (!outboundQueue.offer(frame)) {
+                Log.warn("Client " + address + " is too slow, disconnecting");
+                close();
+                return;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            } else if (coalesceNanos > 0 && outboundQueue.queuedBytes() >= config.coalesceBytes
+                    && urgentFlushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flushNow);
+            }
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outboundQueue;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        @Override
+        public void setEncrypted(boolean encrypted) {
+            this.encrypted = encrypted;
+        }
+
+        @Override
+        public void enableCompression() {
+            if (compressor == null) {
+                compressor = new FrameCompressor();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        @Override
+        public void close() {
+            if (Thread.currentThread() != loop) {
+                // Let the owning loop do the teardown so the session never sees two threads
+                loop.execute(this::close);
+                return;
+            }
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing client socket: " + e.getMessage());
+            }
+            outboundQueue.close();
+            if (compressor != null) {
+                compressor.end();
+            }
+            Arrays.fill(writeBatch, null);
+            batchStart = batchEnd = 0;
+            session.onDisconnect();
+        }
+    }
+}
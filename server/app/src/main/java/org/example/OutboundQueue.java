@@ -0,0 +1,320 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one connection.
+ *
+ * Senders only ever call offer(), which never blocks on the network, so a slow client can no longer
+ * stall the thread that is broadcasting. The connection's own writer drains the queue with take()
+ * (blocking engines) or poll() (NIO engine).
+ *
+ * A full queue only ever gives up chat (TEXT) frames. Control frames such as WELCOME, PING and PONG are
+ * never the ones dropped or coalesced away while there is a chat frame to drop instead, since losing
+ * them breaks the handshake or gets a healthy client timed out.
+ */
+public class OutboundQueue {
+    // Totals over all connections, for reporting
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalDisconnects = new LongAdder();
+    private static final LongAdder totalWrites = new LongAdder(); // Socket write calls
+    private static final LongAdder totalFramesWritten = new LongAdder();
+    private static final LongAdder totalBytesWritten = new LongAdder();
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+
+    // A lock rather than synchronized so virtual threads waiting in take() don't pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private int queuedBytes = 0;
+
+    private int skipped = 0; // COALESCE: frames skipped since the client last caught up
+    private long dropped = 0;
+    private int highWaterMark = 0;
+    private boolean closed = false;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a frame without blocking.
+     * @param frame The encoded frame.
+     * @return false if the policy is DISCONNECT and the queue is full; the caller should close the connection.
+     */
+    public boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true; // Nothing left to deliver to, and closing again is pointless
+            }
+            if (frames.size() >= capacity) {
+                dropped++;
+                totalDropped.increment();
+                switch (policy) {
+                    case DROP_OLDEST -> evictOldest();
+                    case DISCONNECT -> {
+                        totalDisconnects.increment();
+                        return false;
+                    }
+                    case COALESCE -> {
+                        skipped++;
+                        if (isText(frame)) {
+                            return true;
+                        }
+                        evictOldest(); // Skip an older message instead, to make room for this one
+                    }
+                }
+            }
+            frames.add(frame);
+            queuedBytes += frame.remaining();
+            highWaterMark = Math.max(highWaterMark, frames.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame, waiting until one is available.
+     * @return The next frame, or null once the queue has been closed.
+     * @throws InterruptedException If the writer is interrupted while waiting.
+     */
+    public ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && skipped == 0 && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The next frame, or null if nothing is queued.
+     */
+    public ByteBuffer poll() {
+        lock.lock();
+        try {
+            return closed ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for at least one frame, then moves as many queued frames as fit into batch,
+     * so the writer can send them with a single gathering write.
+     * @param batch The array to fill from index 0.
+     * @return The number of frames stored, or 0 once the queue has been closed.
+     * @throws InterruptedException If the writer is interrupted while waiting.
+     */
+    public int takeBatch(ByteBuffer[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && skipped == 0 && !closed) {
+                notEmpty.await();
+            }
+            return closed ? 0 : drain(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like takeBatch(batch), but once the first frame is there keeps waiting until lingerUntil for more,
+     * so that a burst goes out in one write instead of one write per frame. Stops waiting early once
+     * lingerBytes are queued or the batch would be full.
+     * @param batch The array to fill from index 0.
+     * @param lingerUntil System.nanoTime() deadline; a deadline in the past means no waiting.
+     * @param lingerBytes Queued bytes that are worth a write on their own.
+     * @return The number of frames stored, or 0 once the queue has been closed.
+     * @throws InterruptedException If the writer is interrupted while waiting.
+     */
+    public int takeBatch(ByteBuffer[] batch, long lingerUntil, int lingerBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && skipped == 0 && !closed) {
+                notEmpty.await();
+            }
+            long remaining = lingerUntil - System.nanoTime();
+            while (remaining > 0 && !closed && frames.size() < batch.length && queuedBytes < lingerBytes) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return closed ? 0 : drain(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves as many queued frames as fit into batch without waiting.
+     * @param batch The array to fill from index 0.
+     * @return The number of frames stored.
+     */
+    public int pollBatch(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            return closed ? 0 : drain(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock. Removes the oldest chat frame; only a queue of nothing but control frames,
+    // e.g. PONGs for a client that floods PINGs and never reads, loses its oldest control frame.
+    private void evictOldest() {
+        Iterator<ByteBuffer> queued = frames.iterator();
+        while (queued.hasNext()) {
+            ByteBuffer frame = queued.next();
+            if (isText(frame)) {
+                queued.remove();
+                queuedBytes -= frame.remaining();
+                return;
+            }
+        }
+        queuedBytes -= frames.poll().remaining();
+    }
+
+    // The type of the first frame in the buffer; a buffer of several frames (a replay) holds only chat frames
+    private static boolean isText(ByteBuffer frame) {
+        return frame.remaining() >= Frame.HEADER_LENGTH && frame.get(frame.position() + 4) == Frame.TYPE_TEXT;
+    }
+
+    // Caller holds the lock
+    private int drain(ByteBuffer[] batch) {
+        int count = 0;
+        ByteBuffer frame;
+        while (count < batch.length && (frame = next()) != null) {
+            batch[count++] = frame;
+        }
+        return count;
+    }
+
+    // Caller holds the lock
+    private ByteBuffer next() {
+        if (skipped > 0 && frames.isEmpty()) {
+            // The client has caught up; tell it what it missed instead of replaying it
+            ByteBuffer notice = FrameEncoder.encodeText("[" + skipped + " messages skipped, you are reading too slowly]");
+            skipped = 0;
+            return notice;
+        }
+        ByteBuffer frame = frames.poll();
+        if (frame != null) {
+            queuedBytes -= frame.remaining();
+        }
+        return frame;
+    }
+
+    /**
+     * Discards everything queued and wakes up a waiting writer.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the queue is at least half full, i.e. the client is falling behind.
+     */
+    public boolean isBacklogged() {
+        lock.lock();
+        try {
+            return frames.size() >= capacity / 2;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Bytes waiting to be written, not counting the frame the writer is busy with.
+     */
+    public int queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int highWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts socket write calls, for the syscall numbers in the stats line.
+     * @param calls Number of write calls.
+     * @param frameCount Frames that those calls sent.
+     * @param bytes Bytes that those calls wrote.
+     */
+    public static void recordWrites(int calls, int frameCount, long bytes) {
+        totalWrites.add(calls);
+        totalFramesWritten.add(frameCount);
+        totalBytesWritten.add(bytes);
+    }
+
+    public static long totalWrites() {
+        return totalWrites.sum();
+    }
+
+    public static long totalFramesWritten() {
+        return totalFramesWritten.sum();
+    }
+
+    public static long totalBytesWritten() {
+        return totalBytesWritten.sum();
+    }
+
+    public static long totalDropped() {
+        return totalDropped.sum();
+    }
+
+    public static long totalDisconnects() {
+        return totalDisconnects.sum();
+    }
+}
@@ -0,0 +1,161 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Join and leave notices, batched per room.
+ *
+ * Sessions only record that someone joined or left, which is O(1) and sends nothing. Every interval a
+ * flusher thread turns each room's changes into a single notice, such as "alice, bob joined, carol left"
+ * or "4870 joined, 5000 left", and fans that out once. So a reconnect storm of N clients costs each
+ * room one broadcast per interval instead of O(N) broadcasts to N members.
+ *
+ * Presence is less important than chat: recipients whose outbound queue is backed up are skipped, so
+ * the notices never push chat messages out of a slow client's queue.
+ *
+ * In a cluster, joins and leaves on this node are also relayed to the other nodes, and theirs are
+ * batched here like local ones.
+ */
+public final class PresenceEvents {
+    private static final int MAX_NAMES = 5; // Beyond this a notice gives counts instead of names
+
+    private final RoomRegistry rooms;
+    private final CryptoStage crypto; // null unless the server has a key
+    private final ServerMetrics metrics;
+    private final ClusterRelay relay; // null unless the server is part of a cluster
+    private final long intervalMillis; // 0 = no batching, every change is broadcast right away
+    // Changes since the last flush, per room name. Only changed inside compute(), which locks the room's bin.
+    private final ConcurrentHashMap<String, Delta> pending = new ConcurrentHashMap<>();
+
+    PresenceEvents(RoomRegistry rooms, CryptoStage crypto, ServerMetrics metrics, long intervalMillis, ClusterRelay relay) {
+        this.rooms = rooms;
+        this.crypto = crypto;
+        this.metrics = metrics;
+        this.relay = relay;
+        this.intervalMillis = intervalMillis;
+        if (intervalMillis > 0) {
+            Thread.ofPlatform().name("presence-flusher").daemon().start(this::flushLoop);
+        }
+    }
+
+    /**
+     * @param room The room that was joined.
+     * @param name Who joined it.
+     */
+    public void joined(Room room, String name) {
+        if (relay != null) {
+            relay.publishPresence(room.getName(), name, true);
+        }
+        record(room, name, true);
+    }
+
+    /**
+     * @param room The room that was left.
+     * @param name Who left it.
+     */
+    public void left(Room room, String name) {
+        if (relay != null) {
+            relay.publishPresence(room.getName(), name, false);
+        }
+        record(room, name, false);
+    }
+
+    /**
+     * A join or leave relayed from another node of the cluster.
+     * @param roomName The room.
+     * @param name Who joined or left it.
+     * @param joined true for a join.
+     */
+    void applyRemote(String roomName, String name, boolean joined) {
+        Room room = rooms.get(roomName);
+        if (room != null) { // Nobody on this node to tell otherwise
+            record(room, name, joined);
+        }
+    }
+
+    private void record(Room room, String name, boolean joined) {
+        metrics.onPresenceEvent();
+        if (intervalMillis == 0) {
+            broadcast(room, joined ? name + " joined" : name + " left");
+            return;
+        }
+        pending.compute(room.getName(), (roomName, delta) -> {
+            if (delta == null) {
+                delta = new Delta();
+            }
+            delta.add(name, joined);
+            return delta;
+        });
+    }
+
+    private void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Broadcasts one notice per room with changes since the last flush.
+     */
+    void flush() {
+        for (String roomName : pending.keySet()) {
+            Delta[] taken = new Delta[1];
+            pending.computeIfPresent(roomName, (name, delta) -> {
+                taken[0] = delta;
+                return null;
+            });
+            Room room = rooms.get(roomName);
+            if (taken[0] != null && room != null) {
+                broadcast(room, taken[0].describe()); // Nobody to tell if the room has emptied meanwhile
+            }
+        }
+    }
+
+    private void broadcast(Room room, String notice) {
+        Log.debug(() -> "Presence in " + room.getName() + ": " + notice);
+        long start = System.nanoTime();
+        ByteBuffer frame = FrameEncoder.encodeShared(notice);
+        int recipients = ChatSession.fanOut(room.getMembers(), frame, crypto, true);
+        metrics.onBroadcast(recipients, System.nanoTime() - start);
+    }
+
+    // What changed in one room during an interval
+    private static final class Delta {
+        private final List<String> joinedNames = new ArrayList<>(MAX_NAMES);
+        private final List<String> leftNames = new ArrayList<>(MAX_NAMES);
+        private int joined = 0;
+        private int left = 0;
+
+        void add(String name, boolean join) {
+            if (join) {
+                if (joined++ < MAX_NAMES) {
+                    joinedNames.add(name);
+                }
+            } else if (left++ < MAX_NAMES) {
+                leftNames.add(name);
+            }
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder();
+            if (joined > 0) {
+                sb.append(joined <= MAX_NAMES ? String.join(", ", joinedNames) : Integer.toString(joined)).append(" joined");
+            }
+            if (left > 0) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(left <= MAX_NAMES ? String.join(", ", leftNames) : Integer.toString(left)).append(" left");
+            }
+            return sb.toString();
+        }
+    }
+}
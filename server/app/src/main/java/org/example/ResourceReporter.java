@@ -0,0 +1,88 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+// Periodically prints thread and heap usage per connection so the engines can be compared under the same load
+public final class ResourceReporter extends Thread {
+    private final String engine;
+    private final ChatHub hub;
+    private final long intervalMillis;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    // Write counters at the previous report, to print rates for the last interval
+    private long lastWrites = 0;
+    private long lastFramesWritten = 0;
+
+    public ResourceReporter(String engine, ChatHub hub, int intervalSeconds) {
+        super("resource-reporter");
+        this.engine = engine;
+        this.hub = hub;
+        this.intervalMillis = intervalSeconds * 1000L;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Log.info(report());
+        }
+    }
+
+    /**
+     * Builds a one-line usage report.
+     * Thread counts come from ThreadMXBean, which only sees platform threads, so in virtual mode
+     * the number stays at the carrier pool size no matter how many clients are connected.
+     * @return The report line.
+     */
+    public String report() {
+        int connections = hub.getConnectedClients().size();
+        int platformThreads = threads.getThreadCount();
+        long heapUsed = memory.getHeapMemoryUsage().getUsed();
+        long threadStackReserved = platformThreads * 1024L * 1024L; // Default -Xss on 64-bit Linux
+
+        long queuedFrames = 0;
+        int deepestQueue = 0;
+        for (Connection connection : hub.getConnectedClients()) {
+            int depth = connection.getOutboundQueue().depth();
+            queuedFrames += depth;
+            deepestQueue = Math.max(deepestQueue, depth);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("[stats] engine=").append(engine)
+                .append(" connections=").append(connections)
+                .append(" rooms=").append(hub.getRooms().getRooms().size())
+                .append(" platformThreads=").append(platformThreads)
+                .append(" heapUsed=").append(heapUsed / 1024).append("KB")
+                .append(" stackReserved=").append(threadStackReserved / 1024).append("KB")
+                .append(" queuedFrames=").append(queuedFrames)
+                .append(" deepestQueue=").append(deepestQueue)
+                .append(" droppedFrames=").append(OutboundQueue.totalDropped())
+                .append(" slowDisconnects=").append(OutboundQueue.totalDisconnects());
+
+        long writes = OutboundQueue.totalWrites();
+        long framesWritten = OutboundQueue.totalFramesWritten();
+        long intervalWrites = writes - lastWrites;
+        long intervalFrames = framesWritten - lastFramesWritten;
+        lastWrites = writes;
+        lastFramesWritten = framesWritten;
+        sb.append(" writesPerSecond=").append(intervalWrites * 1000 / intervalMillis);
+        if (intervalWrites > 0) {
+            sb.append(" framesPerWrite=").append(String.format("%.2f", (double) intervalFrames / intervalWrites));
+        }
+        if (connections > 0) {
+            sb.append(" threadsPerConnection=").append(String.format("%.3f", (double) platformThreads / connections))
+                    .append(" heapPerConnection=").append(heapUsed / connections / 1024).append("KB");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,53 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A chat room. Membership is changed only through RoomRegistry so empty rooms can be dropped atomically.
+public class Room {
+    private final String name;
+    // Concurrent set instead of copy-on-write: joining or leaving doesn't copy the member list,
+    // and broadcasts iterate it without locking
+    private final Set<Connection> members = ConcurrentHashMap.newKeySet();
+    private final MessageHistory history; // null when history is turned off or all rings were taken
+
+    Room(String name, MessageHistory history) {
+        this.name = name;
+        this.history = history;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return A live, read-only view of the members, safe to iterate while others join and leave.
+     */
+    public Set<Connection> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * @return The room's recent messages, or null if the server keeps no history or had no ring buffer to spare.
+     */
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    void add(Connection connection) {
+        members.add(connection);
+    }
+
+    void remove(Connection connection) {
+        members.remove(connection);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+}
@@ -0,0 +1,138 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index from room name to members.
+ *
+ * Joins and leaves go through ConcurrentHashMap.compute, which only locks the hash bin of that one room,
+ * so churn in one room never contends with another room. Broadcasts read a room's member set without
+ * taking any lock, so routing a message costs O(room size).
+ *
+ * A room's history outlives the room, so people who leave and come back still get a replay. At most
+ * historyRooms ring buffers are ever allocated, which bounds the off-heap memory histories use however many
+ * rooms come and go. Once they are all in use, a new room takes the ring of the room that has been empty the
+ * longest, whose history is lost. If every ring belongs to a room that still has members, the new room has
+ * no history.
+ */
+public class RoomRegistry {
+    public static final String DEFAULT_ROOM = "lobby";
+    public static final int MAX_ROOM_NAME_LENGTH = 32;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final int historyMessages;
+    private final int historyBytes;
+    private final int historyRooms;
+
+    // Histories of rooms nobody is in, least recently emptied first. Guards allocatedRings too.
+    private final LinkedHashMap<String, MessageHistory> idleHistories = new LinkedHashMap<>();
+    private int allocatedRings = 0;
+
+    /**
+     * @param historyMessages How many recent messages each room keeps for late joiners, 0 for none.
+     * @param historyBytes The size of each room's history buffer.
+     * @param historyRooms How many rooms, occupied or not, can have a history at once.
+     */
+    public RoomRegistry(int historyMessages, int historyBytes, int historyRooms) {
+        this.historyMessages = historyMessages;
+        this.historyBytes = historyBytes;
+        this.historyRooms = historyRooms;
+    }
+
+    /**
+     * Adds a connection to a room, creating the room if needed.
+     * @param roomName The room to join.
+     * @param connection The joining connection.
+     * @return The room joined.
+     */
+    public Room join(String roomName, Connection connection) {
+        return rooms.compute(roomName, (name, room) -> {
+            if (room == null) {
+                room = new Room(name, takeHistory(name));
+            }
+            room.add(connection);
+            return room;
+        });
+    }
+
+    /**
+     * Removes a connection from a room, dropping the room once it is empty.
+     * @param room The room to leave.
+     * @param connection The leaving connection.
+     */
+    public void leave(Room room, Connection connection) {
+        rooms.computeIfPresent(room.getName(), (name, current) -> {
+            current.remove(connection);
+            if (!current.isEmpty()) {
+                return current;
+            }
+            if (current.getHistory() != null) {
+                synchronized (idleHistories) {
+                    idleHistories.put(name, current.getHistory());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Called with the room's hash bin locked, so nobody is putting this room's history back meanwhile.
+     * @return The history the room had when it last emptied, a new or reused one, or null.
+     */
+    private MessageHistory takeHistory(String roomName) {
+        if (historyMessages <= 0) {
+            return null;
+        }
+        ByteBuffer ring;
+        synchronized (idleHistories) {
+            MessageHistory previous = idleHistories.remove(roomName);
+            if (previous != null) {
+                return previous;
+            }
+            if (allocatedRings < historyRooms) {
+                allocatedRings++;
+                ring = null;
+            } else {
+                Iterator<MessageHistory> oldest = idleHistories.values().iterator();
+                if (!oldest.hasNext()) {
+                    return null;
+                }
+                ring = oldest.next().retire();
+                oldest.remove();
+            }
+        }
+        return ring == null ? new MessageHistory(historyMessages, historyBytes) : new MessageHistory(historyMessages, ring);
+    }
+
+    /**
+     * @param roomName The room to look up.
+     * @return The room, or null if nobody is in it.
+     */
+    public Room get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    public Collection<Room> getRooms() {
+        return rooms.values();
+    }
+
+    /**
+     * @param roomName A room name sent by a client.
+     * @return true if the name is usable: 1 to MAX_ROOM_NAME_LENGTH characters without whitespace.
+     */
+    public static boolean isValidName(String roomName) {
+        if (roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < roomName.length(); i++) {
+            if (Character.isWhitespace(roomName.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,162 +5,280 @@ package org.example;
 
 import java.io.*;
 import java.net.*;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList; // Import thread-safe list
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // Server is now a class that manages the clients
 public class Server {
 
-    // Use an instance variable for the list of connected clients
-    // CopyOnWriteArrayList is thread-safe for concurrent access
-    private List<Socket> connectedClients = new CopyOnWriteArrayList<>();
+    // Connected clients and rooms, shared by all handler threads
+    private final ChatHub hub;
 
     private int port;
+    private final ServerConfig config;
+    // Runs each client's read loop and writer, either on platform threads or on virtual threads
+    private final ExecutorService handlerExecutor;
 
     public Server(int port) {
-        this.port = port;
+        this(configForPort(port));
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.port = config.port;
+        this.hub = new ChatHub(config);
+        this.handlerExecutor = config.engine.equals("virtual")
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-handler-", 0).factory())
+                : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-handler-", 0).factory());
+    }
+
+    public ChatHub getHub() {
+        return hub;
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) { // Use try-with-resources for ServerSocket
-            System.out.println("Server is listening on port " + port);
+        // Blocking channels rather than plain sockets so reads and gathering writes work on ByteBuffers directly
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) { // Use try-with-resources for the server channel
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("Server is listening on port " + port);
+            hub.startCluster();
 
             while (true) {
-                Socket clientSocket = serverSocket.accept(); // Accept a new client connection
-                System.out.println("New client connected: " + clientSocket.getInetAddress().getHostAddress());
+                SocketChannel clientChannel = serverChannel.accept(); // Accept a new client connection
+                if (!hub.getAdmission().admit(clientChannel)) {
+                    continue; // Over a limit: told so and closed
+                }
+                Log.info("New client connected: " + clientChannel.socket().getInetAddress().getHostAddress());
+                hub.getMetrics().onAccept();
 
-                // Add the new client to the thread-safe list
-                connectedClients.add(clientSocket);
+                // Add the new client to the thread-safe set
+                SocketConnection connection = new SocketConnection(clientChannel, config.newOutboundQueue(),
+                        config.coalesceMillis * 1_000_000L, config.coalesceBytes);
+                hub.getConnectedClients().add(connection);
 
                 // Handle client connection in a separate thread
                 // Create an instance of a ClientHandler class
-                new ClientHandler(clientSocket, connectedClients).start();
+                handlerExecutor.execute(new ClientHandler(connection, hub));
+                // Writes go through the connection's own writer so a slow client only ever blocks itself
+                handlerExecutor.execute(connection::writeLoop);
             }
         } catch (IOException ex) {
-            System.err.println("Server exception: " + ex.getMessage());
-            ex.printStackTrace();
+            Log.error("Server exception: " + ex.getMessage(), ex);
+        } finally {
+            handlerExecutor.shutdown();
         }
     }
 
-    // Inner class (or separate class) to handle each client connection
-    private class ClientHandler extends Thread {
-        private Socket clientSocket;
-        private List<Socket> clientList;
-        private InputStream inputStream;
-        private OutputStream outputStream;
-
-        public ClientHandler(Socket socket, List<Socket> clientList) {
-            this.clientSocket = socket;
-            this.clientList = clientList; // Reference to the shared list
+    private static ServerConfig configForPort(int port) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        return config;
+    }
+
+    // Connection backed by a blocking socket channel. Senders only queue; writeLoop() does the blocking writes.
+    private static class SocketConnection implements Connection {
+        private static final int WRITE_BATCH = 64; // Frames per gathering write
+
+        private final SocketChannel channel;
+        private final String address;
+        private final OutboundQueue outboundQueue;
+        private final long coalesceNanos; // 0 = write as soon as something is queued
+        private final int coalesceBytes;
+        private volatile boolean encrypted = false;
+        private volatile FrameCompressor compressor; // null until the client asks for compression
+
+        SocketConnection(SocketChannel channel, OutboundQueue outboundQueue, long coalesceNanos, int coalesceBytes) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress().getHostAddress();
+            this.outboundQueue = outboundQueue;
+            this.coalesceNanos = coalesceNanos;
+            this.coalesceBytes = coalesceBytes;
+        }
+
+        // Drains the outbound queue until the connection is closed, writing everything pending in one go
+        void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+            // Far enough in the past that the first write never waits
+            long lastWrite = System.nanoTime() - coalesceNanos;
             try {
-                this.inputStream = socket.getInputStream();
-                this.outputStream = socket.getOutputStream();
+                int count;
+                // With coalescing on, a frame that arrives less than a window after the last write waits for the
+                // rest of that window, so a burst costs one write per window. A quiet connection is written at once.
+                while ((count = coalesceNanos > 0
+                        ? outboundQueue.takeBatch(batch, lastWrite + coalesceNanos, coalesceBytes)
+                        : outboundQueue.takeBatch(batch)) > 0) {
+                    int frameCount = count;
+                    FrameCompressor compressor = this.compressor;
+                    if (compressor != null) {
+                        // The whole batch becomes one compressed buffer
+                        batch[0] = compressor.compress(batch, 0, count);
+                        Arrays.fill(batch, 1, count, null);
+                        count = 1;
+                    }
+                    ByteBuffer last = batch[count - 1];
+                    int calls = 0;
+                    long bytes = 0;
+                    while (last.hasRemaining()) {
+                        bytes += channel.write(batch, 0, count);
+                        calls++;
+                    }
+                    OutboundQueue.recordWrites(calls, frameCount, bytes);
+                    lastWrite = System.nanoTime();
+                    Arrays.fill(batch, 0, count, null); // Don't keep sent frames reachable
+                }
             } catch (IOException e) {
-                System.err.println("Error getting streams: " + e.getMessage());
+                // If sending fails, the client is likely disconnected unexpectedly
+                Log.warn("Error sending message to client " + address + ": " + e.getMessage());
+                close(); // Also ends the read loop, which does the cleanup
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (compressor != null) {
+                    compressor.end();
+                }
             }
         }
 
-        public void run() {
-            System.out.println("Handling client: " + clientSocket.getInetAddress().getHostAddress());
+        @Override
+        public String getAddress() {
+            return address;
+        }
 
-            try {
-                clientSocket.setKeepAlive(true);
-                // Removed setSoTimeout(5000); - reading will block until data is available or connection is closed
+        @Override
+        public void send(ByteBuffer frame) {
+            if (!outboundQueue.offer(frame)) {
+                Log.warn("Client " + address + " is too slow, disconnecting");
+                close();
+            }
+        }
 
-                byte[] buffer = new byte[1024];
-                int bytesRead;
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outboundQueue;
+        }
 
-                String name = "Unknown"; // Default name if not set
+        @Override
+        public boolean isEncrypted() {
+            return encrypted;
+        }
 
-                boolean nextMessageIsHandshake = false;
-                boolean handshakeReceived = false;
+        @Override
+        public void setEncrypted(boolean encrypted) {
+            this.encrypted = encrypted;
+        }
 
-                broadcastMessage("Someone just connected!");
-                broadcastMessage("Waiting for an handshake message...");
+        @Override
+        public void enableCompression() {
+            if (compressor == null) {
+                compressor = new FrameCompressor();
+            }
+        }
 
-                // Read from the client until -1 is returned (connection closed) or error occurs
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    // Process the data received from the client
-                    String receivedData = new String(buffer, 0, bytesRead);
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
 
-                    if (receivedData.trim().isEmpty()) {
-                        // If the received data is empty, skip processing
-                        continue;
-                    }
+        @Override
+        public void close() {
+            outboundQueue.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
 
-                    if (receivedData.equalsIgnoreCase("handshake")) {
-                        nextMessageIsHandshake = true;
-                        System.out.println("Handshake initiated by client: " + clientSocket.getInetAddress().getHostAddress());
+    // Inner class (or separate class) to handle each client connection
+    private class ClientHandler implements Runnable {
+        private SocketConnection connection;
+        private ChatSession session;
+        private final FrameDecoder decoder = new FrameDecoder();
 
-                        continue; // Skip further processing for this message
-                    }
+        public ClientHandler(SocketConnection connection, ChatHub hub) {
+            this.connection = connection;
+            this.session = new ChatSession(connection, hub);
+        }
 
-                    if (nextMessageIsHandshake && receivedData.startsWith("name ")) {
-                        // If the next message is a handshake, we can process it
-                        System.out.println("Handshake message received from client: " + clientSocket.getInetAddress().getHostAddress());
-                        name = receivedData.substring(5).trim(); // Extract the name after "name "
-                        System.out.println("Client name set to: " + name);
-                        nextMessageIsHandshake = false; // Reset the flag
-                        handshakeReceived = true; // Mark that handshake was received
-                        broadcastMessage("Client " + name + " has dabbed me up!");
-                        continue; // Skip further processing for this message
-                    }
-                    System.out.println("Received from "+ name + " (" + clientSocket.getInetAddress().getHostAddress() + ": " + receivedData);
+        public void run() {
+            try {
+                connection.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                // The writer coalesces bursts itself; Nagle would only add a delayed-ACK wait on top
+                connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                // No setSoTimeout: reading blocks until data arrives, and the session's Heartbeat (if negotiated) closes dead peers
 
-                    if (handshakeReceived) {
-                        broadcastMessage(name + ": " + receivedData);
-                    } else {
-                        clientSocket.getOutputStream().write("Please send a handshake message first.\n".getBytes());
-                    }
+                session.onConnect();
 
-                    System.out.println("Processing client: " + clientSocket.getInetAddress().getHostAddress());
+                // Read from the client until -1 is returned (connection closed) or error occurs
+                int read;
+                while ((read = decoder.readFrom(connection.channel)) != -1) {
+                    hub.getMetrics().onRead(read);
+                    // Process every complete frame received from the client
+                    Frame frame;
+                    while ((frame = decoder.next()) != null) {
+                        session.onFrame(frame);
+                    }
                 }
 
                 // If loop ends, the client disconnected gracefully
-                System.out.println("Client disconnected gracefully: " + clientSocket.getInetAddress().getHostAddress());
+                Log.info("Client disconnected gracefully: " + connection.getAddress());
 
             } catch (IOException ex) {
                 // Handle exceptions like connection reset
-                System.err.println("Client handling error for " + clientSocket.getInetAddress().getHostAddress() + ": " + ex.getMessage());
+                Log.warn("Client handling error for " + connection.getAddress() + ": " + ex.getMessage());
             } finally {
-                // Clean up: close the socket and remove from the list
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
-                }
-                // IMPORTANT: Remove the client from the shared list
-                clientList.remove(clientSocket);
-                broadcastMessage("My guy just disconnected: " + clientSocket.getInetAddress().getHostAddress());
-                System.out.println("Client removed. Total clients: " + clientList.size());
+                // Clean up: close the socket and remove from the set and its room
+                connection.close();
+                session.onDisconnect();
             }
         }
+    }
 
-        // Method to send a message to all connected clients
-        private void broadcastMessage(String message) {
-             System.out.println("Broadcasting: " + message);
-            // Iterate over the thread-safe list and send the message
-            for (Socket client : clientList) {
-                try {
-                    // Check if the socket is still open before sending
-                    if (client != null && !client.isClosed()) {
-                        OutputStream clientOut = client.getOutputStream();
-                        // Add a newline for readability in client terminal programs
-                        clientOut.write((message + "\n").getBytes());
-                        clientOut.flush(); // Ensure data is sent immediately
-                    }
-                } catch (IOException e) {
-                    // If sending fails, the client is likely disconnected unexpectedly
-                    System.err.println("Error sending message to client " + client.getInetAddress().getHostAddress() + ": " + e.getMessage());
-                    // The client will be removed from the list when its handler thread detects the disconnect or throws an exception.
-                }
+    // Stats line, JMX and the metrics endpoint, whichever are turned on
+    private static void startReporting(ServerConfig config, ChatHub hub) {
+        if (config.statsSeconds > 0) {
+            new ResourceReporter(config.engine, hub, config.statsSeconds).start();
+        }
+        hub.getMetrics().registerMBean();
+        if (config.metricsPort > 0) {
+            try {
+                new MetricsHttpServer(config.metricsPort, hub.getMetrics()).start();
+            } catch (IOException e) {
+                Log.warn("Could not start the metrics endpoint on port " + config.metricsPort + ": " + e.getMessage());
             }
         }
     }
 
     public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerConfig.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        Log.setLevel(config.logLevel);
+
         // Start the server
-        Server server = new Server(12345);
-        server.start();
+        if (config.engine.equals("nio")) {
+            NioServer server = new NioServer(config);
+            startReporting(config, server.getHub());
+            server.start();
+        } else if (config.engine.equals("thread") || config.engine.equals("virtual")) {
+            Server server = new Server(config);
+            startReporting(config, server.getHub());
+            server.start();
+        } else {
+            System.err.println("Unknown engine: " + config.engine);
+            System.exit(1);
+        }
     }
-}
\ No newline at end of file
+}
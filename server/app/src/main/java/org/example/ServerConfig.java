@@ -0,0 +1,200 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+// Startup options shared by all server engines, filled from the command line
+public class ServerConfig {
+    int port = 12345;
+    String engine = "thread"; // "thread" (platform thread per client), "virtual" (virtual thread per client) or "nio" (selector event loops)
+    int statsSeconds = 0; // Print thread, heap and queue usage every N seconds, 0 = off
+    int metricsPort = 0; // Serve Prometheus metrics on 127.0.0.1:<port>/metrics, 0 = off
+    LogLevel logLevel = LogLevel.INFO; // DEBUG also logs every message and broadcast
+
+    // Outbound queue per connection
+    int queueCapacity = 1024; // Frames
+    SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+    // Write coalescing: during a burst, hold writes back for up to this long or until this many bytes are queued.
+    // A connection that hasn't been written to for a whole window is written to right away.
+    int coalesceMillis = 0; // 0 = off, write as soon as something is queued
+    int coalesceBytes = 16 * 1024;
+    boolean compression = true; // Accept clients that ask for compressed frames
+
+    // Admission control and per-client rate limits, 0 = off. A client's burst is one second's worth.
+    int maxConnections = 0; // Open connections; more are rejected at accept
+    int acceptRate = 0; // New connections per second
+    int clientMessageRate = 0; // Frames per second from one client; more are dropped
+    int clientByteRate = 0; // Bytes per second from one client; more are dropped
+
+    // Liveness: a client silent for heartbeatSeconds gets a PING, one silent for idleTimeoutSeconds is closed. 0 = off.
+    // Only for clients that ask for heartbeats in their HELLO; others are never pinged or timed out
+    int heartbeatSeconds = 5;
+    int idleTimeoutSeconds = 15;
+
+    NameCollisionPolicy nameCollisionPolicy = NameCollisionPolicy.REJECT; // When a client asks for a name in use
+
+    // Join and leave notices are collected and broadcast as one notice per room this often, 0 = one broadcast each
+    int presenceMillis = 1000;
+
+    // Cluster: other Server instances to relay chat and presence to and from. Off unless a port or peers are given.
+    String nodeId = null; // Unique per node, defaults to "node-<port>"
+    int clusterPort = 0; // Where peers connect to us, 0 = don't listen
+    // Interface the cluster port listens on. Anything but loopback needs a key, which authenticates the peers
+    InetAddress clusterBind = InetAddress.getLoopbackAddress();
+    List<InetSocketAddress> peers = new ArrayList<>(); // Where we connect to them
+    int relayBatchMillis = 2; // Collect events this long before sending a batch, 0 = send what is there
+
+    // Recent messages per room, replayed to clients after their handshake
+    int historyMessages = 50; // 0 = no history
+    int historyBytes = 64 * 1024; // Off-heap ring buffer size per room
+    int historyRooms = 256; // Rings allocated at most, so histories use up to historyRooms * historyBytes off-heap
+
+    // Durable message journal, off unless a directory is given
+    String journalDir = null;
+    int journalSegmentBytes = 64 * 1024 * 1024;
+    int journalMaxSegments = 16;
+    FsyncPolicy journalFsync = FsyncPolicy.INTERVAL;
+    long journalFsyncMillis = 100;
+
+    // Shared AES-256 key for encrypted clients and for authenticating cluster peers, off unless given
+    byte[] key = null;
+    int cryptoThreads = Runtime.getRuntime().availableProcessors(); // Workers that decrypt and encrypt off the I/O threads
+
+    static final String USAGE = "Usage: Server [--port <port>] [--engine thread|virtual|nio] [--stats <seconds>]\n"
+            + "              [--metrics-port <port>] [--log-level debug|info|warn|error]\n"
+            + "              [--queue-size <frames>] [--slow-consumer drop-oldest|disconnect|coalesce]\n"
+            + "              [--coalesce-ms <millis>] [--coalesce-bytes <bytes>] [--compression on|off]\n"
+            + "              [--max-connections <count>] [--accept-rate <per second>]\n"
+            + "              [--client-msg-rate <per second>] [--client-byte-rate <bytes per second>]\n"
+            + "              [--heartbeat <seconds>] [--idle-timeout <seconds>]\n"
+            + "              [--name-collision reject|rename] [--presence-ms <millis>]\n"
+            + "              [--node-id <id>] [--cluster-port <port>] [--cluster-bind <address>]\n"
+            + "              [--peers <host:port,...>] [--relay-batch-ms <millis>]\n"
+            + "              [--history <messages>] [--history-bytes <bytes>] [--history-rooms <count>]\n"
+            + "              [--journal-dir <dir>] [--journal-segment-bytes <bytes>] [--journal-segments <count>]\n"
+            + "              [--journal-fsync always|interval|never] [--journal-fsync-ms <millis>]\n"
+            + "              [--key <base64 key>] [--crypto-threads <count>]";
+
+    /**
+     * Parses the command line.
+     * @param args The arguments passed to main.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an argument is unknown or has a bad value.
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--port" -> config.port = Integer.parseInt(value);
+                case "--engine" -> config.engine = value;
+                case "--stats" -> config.statsSeconds = Integer.parseInt(value);
+                case "--metrics-port" -> config.metricsPort = Integer.parseInt(value);
+                case "--log-level" -> config.logLevel = LogLevel.fromString(value);
+                case "--queue-size" -> config.queueCapacity = Integer.parseInt(value);
+                case "--slow-consumer" -> config.slowConsumerPolicy = SlowConsumerPolicy.fromString(value);
+                case "--coalesce-ms" -> config.coalesceMillis = Integer.parseInt(value);
+                case "--coalesce-bytes" -> config.coalesceBytes = Integer.parseInt(value);
+                case "--compression" -> config.compression = parseOnOff(arg, value);
+                case "--max-connections" -> config.maxConnections = parseLimit(arg, value);
+                case "--accept-rate" -> config.acceptRate = parseLimit(arg, value);
+                case "--client-msg-rate" -> config.clientMessageRate = parseLimit(arg, value);
+                case "--client-byte-rate" -> config.clientByteRate = parseLimit(arg, value);
+                case "--heartbeat" -> config.heartbeatSeconds = parseLimit(arg, value);
+                case "--idle-timeout" -> config.idleTimeoutSeconds = parseLimit(arg, value);
+                case "--name-collision" -> config.nameCollisionPolicy = NameCollisionPolicy.fromString(value);
+                case "--presence-ms" -> config.presenceMillis = parseLimit(arg, value);
+                case "--node-id" -> config.nodeId = value;
+                case "--cluster-port" -> config.clusterPort = Integer.parseInt(value);
+                case "--cluster-bind" -> config.clusterBind = parseAddress(arg, value);
+                case "--peers" -> config.peers = parsePeers(value);
+                case "--relay-batch-ms" -> config.relayBatchMillis = parseLimit(arg, value);
+                case "--history" -> config.historyMessages = Integer.parseInt(value);
+                case "--history-bytes" -> config.historyBytes = Integer.parseInt(value);
+                case "--history-rooms" -> config.historyRooms = Integer.parseInt(value);
+                case "--journal-dir" -> config.journalDir = value;
+                case "--journal-segment-bytes" -> config.journalSegmentBytes = Integer.parseInt(value);
+                case "--journal-segments" -> config.journalMaxSegments = Integer.parseInt(value);
+                case "--journal-fsync" -> config.journalFsync = FsyncPolicy.fromString(value);
+                case "--journal-fsync-ms" -> config.journalFsyncMillis = parsePositive(arg, value);
+                case "--key" -> config.key = parseKey(value);
+                case "--crypto-threads" -> config.cryptoThreads = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (config.clusterPort > 0 && !config.clusterBind.isLoopbackAddress() && config.key == null) {
+            // Anyone who can reach the port could relay chat into every room otherwise
+            throw new IllegalArgumentException("--cluster-bind " + config.clusterBind.getHostAddress()
+                    + " needs --key, so that cluster peers can be authenticated");
+        }
+        return config;
+    }
+
+    private static boolean parseOnOff(String arg, String value) {
+        return switch (value) {
+            case "on" -> true;
+            case "off" -> false;
+            default -> throw new IllegalArgumentException(arg + " must be on or off: " + value);
+        };
+    }
+
+    private static int parseLimit(String arg, String value) {
+        int limit = Integer.parseInt(value);
+        if (limit < 0) {
+            throw new IllegalArgumentException(arg + " can't be negative: " + value);
+        }
+        return limit;
+    }
+
+    // For intervals that something waits on in a loop, where 0 would make it spin
+    private static int parsePositive(String arg, String value) {
+        int number = Integer.parseInt(value);
+        if (number <= 0) {
+            throw new IllegalArgumentException(arg + " must be positive: " + value);
+        }
+        return number;
+    }
+
+    private static InetAddress parseAddress(String arg, String value) {
+        try {
+            return InetAddress.getByName(value);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(arg + " is not a known address: " + value);
+        }
+    }
+
+    // "host:port,host:port"; resolved when connecting, so a peer that isn't up yet is fine
+    private static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("--peers needs host:port entries: " + peer);
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                    Integer.parseInt(peer.substring(colon + 1).trim())));
+        }
+        return peers;
+    }
+
+    // Same format as the client's -k option: 32 bytes, Base64 encoded
+    private static byte[] parseKey(String value) {
+        byte[] key = Base64.getDecoder().decode(value);
+        if (key.length != 32) {
+            throw new IllegalArgumentException("--key must be 32 bytes (AES-256), got " + key.length);
+        }
+        return key;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueCapacity, slowConsumerPolicy);
+    }
+}
@@ -0,0 +1,356 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server telemetry: connection, traffic and broadcast counters plus broadcast and handshake latency.
+ *
+ * Recording is cheap enough for the hot paths: counters are LongAdders (striped per CPU, so threads
+ * don't fight over one cache line) and latencies go into lock-free LatencyHistograms. Everything that
+ * can be computed at read time instead (connection count, queue depth) is, so it costs nothing until
+ * someone looks. Readable through JMX and, with --metrics-port, in Prometheus text format over HTTP.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+    // Histogram bucket boundaries for the Prometheus output, from 1 us to 10 s
+    private static final long[] BUCKET_NANOS = {
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000, 100_000_000,
+            250_000_000, 500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L};
+
+    private final ChatHub hub;
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder(); // By AdmissionControl
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder(); // Closed by their Heartbeat
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder framesRead = new LongAdder();
+    private final LongAdder framesThrottled = new LongAdder(); // Dropped by a client's rate limit
+    private final LongAdder messages = new LongAdder(); // Chat lines, not commands or notices
+    private final LongAdder directMessages = new LongAdder(); // /msg
+    private final LongAdder deliveries = new LongAdder(); // Broadcast frames queued for a recipient
+    private final LongAdder presenceEvents = new LongAdder(); // Joins and leaves, before batching
+    private final LatencyHistogram broadcastNanos = new LatencyHistogram(); // Encode + fan-out; its count is the broadcast count
+    // Cluster relay
+    private final LongAdder relayEventsSent = new LongAdder();
+    private final LongAdder relayEventsReceived = new LongAdder();
+    private final LongAdder relayDuplicates = new LongAdder(); // Seen before, e.g. resent after a link dropped
+    private final LongAdder relayDropped = new LongAdder(); // Events or batches given up on
+    private final LatencyHistogram relayNanos = new LatencyHistogram(); // Sent on the origin until received here
+    private final LatencyHistogram handshakeNanos = new LatencyHistogram(); // Connect until the name arrived
+
+    ServerMetrics(ChatHub hub) {
+        this.hub = hub;
+    }
+
+    // --- Recording, called from the engines and ChatSession ---
+
+    void onAccept() {
+        connectionsAccepted.increment();
+    }
+
+    void onRejectedConnection() {
+        connectionsRejected.increment();
+    }
+
+    void onRead(int bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void onFrame() {
+        framesRead.increment();
+    }
+
+    void onThrottled() {
+        framesThrottled.increment();
+    }
+
+    void onHandshake(long nanosSinceConnect) {
+        handshakes.increment();
+        handshakeNanos.record(nanosSinceConnect);
+    }
+
+    void onMessage() {
+        messages.increment();
+    }
+
+    void onDirectMessage() {
+        directMessages.increment();
+    }
+
+    void onBroadcast(int recipients, long nanos) {
+        deliveries.add(recipients);
+        broadcastNanos.record(nanos);
+    }
+
+    void onPresenceEvent() {
+        presenceEvents.increment();
+    }
+
+    void onRelaySent(int events) {
+        relayEventsSent.add(events);
+    }
+
+    void onRelayReceived(long nanosSinceSent) {
+        relayEventsReceived.increment();
+        relayNanos.record(nanosSinceSent);
+    }
+
+    void onRelayDuplicate() {
+        relayDuplicates.increment();
+    }
+
+    void onRelayDropped(int count) {
+        relayDropped.add(count);
+    }
+
+    void onDisconnect() {
+        disconnects.increment();
+    }
+
+    void onIdleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    /**
+     * Registers these metrics as org.example:type=ChatServer with the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=ChatServer"));
+        } catch (JMException e) {
+            Log.warn("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "chat_connections", "Open client connections.", getConnections());
+        gauge(sb, "chat_users_online", "Clients that completed the handshake under a name.", getUsersOnline());
+        gauge(sb, "chat_rooms", "Rooms with at least one member.", getRooms());
+        gauge(sb, "chat_queued_frames", "Frames waiting in outbound queues.", getQueuedFrames());
+        counter(sb, "chat_connections_accepted_total", "Accepted client connections.", getConnectionsAccepted());
+        counter(sb, "chat_connections_rejected_total", "Connections rejected by admission control.",
+                getConnectionsRejected());
+        counter(sb, "chat_disconnects_total", "Closed client connections.", getDisconnects());
+        counter(sb, "chat_idle_timeouts_total", "Clients disconnected for being silent past the idle timeout.",
+                getIdleTimeouts());
+        counter(sb, "chat_handshakes_total", "Completed name handshakes.", getHandshakes());
+        counter(sb, "chat_bytes_read_total", "Bytes read from clients.", getBytesRead());
+        counter(sb, "chat_bytes_written_total", "Bytes written to clients.", getBytesWritten());
+        counter(sb, "chat_frames_read_total", "Frames received from clients.", getFramesRead());
+        counter(sb, "chat_frames_throttled_total", "Frames dropped by per-client rate limits.", getFramesThrottled());
+        counter(sb, "chat_frames_written_total", "Frames written to clients.", OutboundQueue.totalFramesWritten());
+        counter(sb, "chat_socket_writes_total", "Socket write calls.", OutboundQueue.totalWrites());
+        counter(sb, "chat_messages_total", "Chat messages received.", getMessages());
+        counter(sb, "chat_direct_messages_total", "Direct messages delivered with /msg.", getDirectMessages());
+        counter(sb, "chat_broadcasts_total", "Broadcasts, chat and notices.", getBroadcasts());
+        counter(sb, "chat_deliveries_total", "Broadcast frames queued for recipients.", getDeliveries());
+        counter(sb, "chat_presence_events_total", "Room joins and leaves, before batching into notices.",
+                getPresenceEvents());
+        counter(sb, "chat_dropped_frames_total", "Frames dropped by the slow consumer policy.", getDroppedFrames());
+        counter(sb, "chat_slow_consumer_disconnects_total", "Clients disconnected for reading too slowly.",
+                OutboundQueue.totalDisconnects());
+        counter(sb, "chat_log_lines_dropped_total", "Log lines dropped because the log writer fell behind.",
+                getLogLinesDropped());
+        counter(sb, "chat_relay_events_sent_total", "Chat and presence events relayed to cluster peers.",
+                getRelayEventsSent());
+        counter(sb, "chat_relay_events_received_total", "Events received from cluster peers.", getRelayEventsReceived());
+        counter(sb, "chat_relay_duplicates_total", "Relayed events dropped as already seen.", getRelayDuplicates());
+        counter(sb, "chat_relay_dropped_total", "Relay events or batches dropped because a peer fell behind.",
+                getRelayDropped());
+        histogram(sb, "chat_relay_seconds", "Time from an event on another node until it arrived here.", relayNanos);
+        histogram(sb, "chat_broadcast_seconds", "Time to encode and fan out one broadcast.", broadcastNanos);
+        histogram(sb, "chat_handshake_seconds", "Time from connect until the client sent its name.", handshakeNanos);
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long count = histogram.getCount(); // Read first, so no bucket can end up above the total
+        for (long bound : BUCKET_NANOS) {
+            sb.append(name).append("_bucket{le=\"").append(bound / 1e9).append("\"} ")
+                    .append(Math.min(histogram.countAtOrBelow(bound), count)).append('\n');
+        }
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        sb.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(count).append('\n');
+    }
+
+    // --- Reading, for JMX ---
+
+    @Override
+    public int getConnections() {
+        return hub.getConnectedClients().size();
+    }
+
+    @Override
+    public int getUsersOnline() {
+        return hub.getNames().size();
+    }
+
+    @Override
+    public int getRooms() {
+        return hub.getRooms().getRooms().size();
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        long queued = 0;
+        for (Connection connection : hub.getConnectedClients()) {
+            queued += connection.getOutboundQueue().depth();
+        }
+        return queued;
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return OutboundQueue.totalBytesWritten();
+    }
+
+    @Override
+    public long getFramesRead() {
+        return framesRead.sum();
+    }
+
+    @Override
+    public long getFramesThrottled() {
+        return framesThrottled.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcastNanos.getCount();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getPresenceEvents() {
+        return presenceEvents.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return OutboundQueue.totalDropped();
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return broadcastNanos.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastNanos.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return broadcastNanos.getMax() / 1000;
+    }
+
+    @Override
+    public long getRelayEventsSent() {
+        return relayEventsSent.sum();
+    }
+
+    @Override
+    public long getRelayEventsReceived() {
+        return relayEventsReceived.sum();
+    }
+
+    @Override
+    public long getRelayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    @Override
+    public long getRelayDropped() {
+        return relayDropped.sum();
+    }
+
+    @Override
+    public long getRelayP50Micros() {
+        return relayNanos.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getRelayP99Micros() {
+        return relayNanos.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getHandshakeP99Millis() {
+        return handshakeNanos.percentile(99) / 1_000_000;
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return Log.dropped();
+    }
+}
@@ -0,0 +1,65 @@
+package org.example;
+
+// What ServerMetrics shows in JMX (jconsole, VisualVM, ...), under org.example:type=ChatServer
+public interface ServerMetricsMXBean {
+
+    int getConnections();
+
+    int getUsersOnline();
+
+    int getRooms();
+
+    long getQueuedFrames();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getDisconnects();
+
+    long getIdleTimeouts();
+
+    long getHandshakes();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getFramesRead();
+
+    long getFramesThrottled();
+
+    long getMessages();
+
+    long getDirectMessages();
+
+    long getBroadcasts();
+
+    long getDeliveries();
+
+    long getPresenceEvents();
+
+    long getDroppedFrames();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getRelayEventsSent();
+
+    long getRelayEventsReceived();
+
+    long getRelayDuplicates();
+
+    long getRelayDropped();
+
+    long getRelayP50Micros();
+
+    long getRelayP99Micros();
+
+    long getHandshakeP99Millis();
+
+    long getLogLinesDropped();
+}
@@ -0,0 +1,15 @@
+package org.example;
+
+// What a connection's outbound queue does when it is full because the client reads slower than the room talks
+public enum SlowConsumerPolicy {
+    // Throw away the oldest queued frame to make room for the new one
+    DROP_OLDEST,
+    // Give up on the client and close its connection
+    DISCONNECT,
+    // Skip new frames while full and tell the client how many it missed once it catches up
+    COALESCE;
+
+    public static SlowConsumerPolicy fromString(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,132 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel: one thread drives every timeout in the server, however many there are.
+ *
+ * Time is cut into ticks and the wheel has one bucket per tick, wrapping around. A timeout goes into
+ * the bucket of the tick it expires in, with the number of full turns it still has to wait, so
+ * scheduling and cancelling are O(1) and each tick only looks at one bucket. The price is precision:
+ * a timeout fires up to one tick late, which is fine for heartbeats and idle checks measured in seconds.
+ *
+ * Any thread may schedule or cancel. New timeouts go through a lock-free queue that the wheel thread
+ * drains at every tick; cancelled ones are dropped when their bucket comes round. Tasks run on the
+ * wheel thread, so they must be short and must not block.
+ */
+public final class TimerWheel {
+    private final long tickNanos;
+    private final Queue<Timeout>[] buckets; // Only touched by the wheel thread
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startNanos = System.nanoTime();
+    private long tick = 0; // Ticks processed so far; only touched by the wheel thread
+
+    /**
+     * @param tickMillis Resolution of the wheel.
+     * @param wheelSize Buckets per turn, rounded up to a power of two. A turn should cover the usual timeout,
+     *                  so that most timeouts fire on their first visit.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Generic array creation
+    public TimerWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive: " + tickMillis + ", " + wheelSize);
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.thread = Thread.ofPlatform().name("timer-wheel").daemon().unstarted(this::run);
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the wheel thread after a delay.
+     * @param task Short and non-blocking, e.g. queueing a frame or closing a connection.
+     * @param delayNanos At least this long from now, give or take a tick.
+     * @return A handle to cancel it with.
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, delayNanos));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // Nanos since the wheel started
+        private long remainingTurns; // Only touched by the wheel thread
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running, if it hasn't yet. O(1): the timeout stays in its bucket until the
+         * wheel gets there.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            transferPending();
+            expire(buckets[(int) (tick & mask)]);
+        }
+    }
+
+    // Puts newly scheduled timeouts into their buckets
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Never into a tick that has already been processed; late ones fire on the current tick
+            long expiryTick = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos);
+            timeout.remainingTurns = (expiryTick - tick) / buckets.length;
+            buckets[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.remainingTurns > 0) {
+                timeout.remainingTurns--;
+                bucket.add(timeout); // Goes round once more
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                Log.error("Timer task failed: " + e.getMessage(), e);
+            }
+        }
+    }
+}
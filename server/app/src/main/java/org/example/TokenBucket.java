@@ -0,0 +1,54 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, for rate limits on hot paths.
+ *
+ * Instead of a token count and a refill timestamp, the whole state is one long: the System.nanoTime()
+ * at which the bucket will be full again (the "generic cell rate algorithm" form of a token bucket).
+ * Taking tokens moves that time forward by their cost; the bucket refuses when it would have to move
+ * further than a full burst ahead of now. So a check is one read and, if it passes, one CAS, with no
+ * refill thread and no lock. Any number of threads can share one bucket.
+ */
+public final class TokenBucket {
+    private final long tokensPerSecond;
+    private final long burstNanos; // How far ahead of now fullAt may run: the burst, as time to refill it
+    private final AtomicLong fullAt;
+
+    /**
+     * Starts full.
+     * @param tokensPerSecond The sustained rate.
+     * @param burst How many tokens can be taken at once after a quiet period.
+     */
+    public TokenBucket(long tokensPerSecond, long burst) {
+        if (tokensPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + tokensPerSecond + ", " + burst);
+        }
+        this.tokensPerSecond = tokensPerSecond;
+        this.burstNanos = burst * 1_000_000_000L / tokensPerSecond;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens if there are enough. A request larger than the burst is let through only when the
+     * bucket is full, and the debt then holds back what comes after it.
+     * @param tokens How many, e.g. 1 per message or the size of a frame in bytes.
+     * @return true if they were taken, false if the caller is over the rate.
+     */
+    public boolean tryAcquire(long tokens) {
+        long cost = tokens * 1_000_000_000L / tokensPerSecond;
+        while (true) {
+            long now = System.nanoTime();
+            long full = fullAt.get();
+            boolean wasFull = full - now <= 0;
+            long next = (wasFull ? now : full) + cost;
+            if (!wasFull && next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+
+    @Test
+    void decodesFrameSplitAcrossFeeds() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer wire = FrameEncoder.encodeText("hello");
+
+        // One byte at a time, including through the header
+        for (int i = 0; i < wire.limit() - 1; i++) {
+            decoder.feed(wire.slice(i, 1));
+            assertNull(decoder.next(), "frame complete after " + (i + 1) + " bytes");
+        }
+        decoder.feed(wire.slice(wire.limit() - 1, 1));
+
+        Frame frame = decoder.next();
+        assertNotNull(frame);
+        assertEquals(Frame.TYPE_TEXT, frame.getType());
+        assertEquals("hello", frame.text());
+        assertNull(decoder.next());
+    }
+
+    @Test
+    void decodesFramesMergedInOneRead() throws Exception {
+        ByteBuffer wire = ByteBuffer.allocate(256);
+        wire.put(FrameEncoder.encodeText("one"));
+        wire.put(FrameEncoder.encode(Frame.TYPE_PING, (byte) 0, new byte[0]));
+        wire.put(FrameEncoder.encode(Frame.TYPE_TEXT, Frame.FLAG_COMPRESSED, new byte[] {1, 2, 3}));
+        wire.put(FrameEncoder.encodeText("two").slice(0, 4)); // Only part of a fourth frame's header
+        wire.flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(wire);
+
+        assertEquals("one", decoder.next().text());
+        Frame ping = decoder.next();
+        assertEquals(Frame.TYPE_PING, ping.getType());
+        assertEquals(0, ping.getPayload().remaining());
+        Frame flagged = decoder.next();
+        assertEquals(Frame.FLAG_COMPRESSED, flagged.getFlags());
+        assertArrayEquals(new byte[] {1, 2, 3}, flagged.payloadBytes());
+        assertNull(decoder.next());
+
+        decoder.feed(FrameEncoder.encodeText("two").position(4));
+        assertEquals("two", decoder.next().text());
+    }
+
+    @Test
+    void feedsMoreCompleteFramesThanBufferHolds() throws Exception {
+        // 32 frames of 512 bytes, four times the default buffer, in a single feed() before any next()
+        ByteBuffer wire = ByteBuffer.allocate(32 * (Frame.HEADER_LENGTH + 512));
+        for (int i = 0; i < 32; i++) {
+            wire.put(FrameEncoder.encodeText(String.format("%03d", i) + "x".repeat(509)));
+        }
+        wire.flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(wire);
+
+        for (int i = 0; i < 32; i++) {
+            assertEquals(String.format("%03d", i), decoder.next().text().substring(0, 3));
+        }
+        assertNull(decoder.next());
+    }
+
+    @Test
+    void decodesZeroLengthFrame() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(FrameEncoder.encode(Frame.TYPE_PONG, (byte) 0, new byte[0]));
+
+        Frame frame = decoder.next();
+        assertEquals(Frame.TYPE_PONG, frame.getType());
+        assertEquals("", frame.text());
+        assertNull(decoder.next());
+    }
+
+    @Test
+    void growsForFrameLargerThanBuffer() throws Exception {
+        byte[] payload = new byte[100_000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        ReadableByteChannel channel = Channels.newChannel(
+                new ByteArrayInputStream(FrameEncoder.encode(Frame.TYPE_TEXT, (byte) 0, payload).array()));
+
+        FrameDecoder decoder = new FrameDecoder(16);
+        Frame frame = null;
+        while (frame == null && decoder.readFrom(channel) != -1) {
+            frame = decoder.next();
+        }
+
+        assertNotNull(frame);
+        assertArrayEquals(payload, frame.payloadBytes());
+    }
+
+    @Test
+    void rejectsOversizedLength() {
+        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+        header.putInt(Frame.MAX_PAYLOAD_LENGTH + 1).put(Frame.TYPE_TEXT).put((byte) 0).flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        assertThrows(ProtocolException.class, () -> {
+            decoder.feed(header);
+            decoder.next();
+        });
+    }
+
+    @Test
+    void rejectsNegativeLength() {
+        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+        header.putInt(-1).put(Frame.TYPE_TEXT).put((byte) 0).flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        assertThrows(ProtocolException.class, () -> {
+            decoder.feed(header);
+            decoder.next();
+        });
+    }
+
+    @Test
+    void keepsPartialFrameAcrossCompaction() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(16);
+        String text = "x".repeat(9); // 15 bytes on the wire, so the second frame straddles the buffer end
+        for (int i = 0; i < 20; i++) {
+            ByteBuffer wire = FrameEncoder.encodeText(text + i);
+            decoder.feed(wire.slice(0, 5));
+            decoder.feed(wire.slice(5, wire.limit() - 5));
+            assertEquals(text + i, new String(decoder.next().payloadBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
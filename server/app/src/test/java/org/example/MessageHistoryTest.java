@@ -0,0 +1,115 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MessageHistoryTest {
+
+    @Test
+    void replaysOldestFirst() throws Exception {
+        MessageHistory history = new MessageHistory(10, 1024);
+        history.append(FrameEncoder.encodeText("a"));
+        history.append(FrameEncoder.encodeText("b"));
+        history.append(FrameEncoder.encodeText("c"));
+
+        assertEquals(List.of("a", "b", "c"), decode(history.replayBefore(history.nextSequence())));
+    }
+
+    @Test
+    void evictsOldestAtMessageLimit() throws Exception {
+        MessageHistory history = new MessageHistory(3, 1024);
+        for (int i = 0; i < 5; i++) {
+            history.append(FrameEncoder.encodeText("m" + i));
+        }
+
+        assertEquals(List.of("m2", "m3", "m4"), decode(history.replayBefore(history.nextSequence())));
+    }
+
+    @Test
+    void wrapsAroundByteCapacity() throws Exception {
+        // 16-byte frames in a 100-byte ring: 6 fit, and every later append lands at a new offset, some
+        // of them split across the end of the ring
+        MessageHistory history = new MessageHistory(100, 100);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String text = String.format("message-%02d", i);
+            history.append(FrameEncoder.encodeText(text));
+            expected.add(text);
+            List<String> kept = expected.subList(Math.max(0, expected.size() - 6), expected.size());
+            assertEquals(kept, decode(history.replayBefore(history.nextSequence())), "after " + text);
+        }
+    }
+
+    @Test
+    void replayBeforeStopsAtSequenceWhenFull() throws Exception {
+        MessageHistory history = new MessageHistory(4, 1024);
+        long[] sequences = new long[10];
+        for (int i = 0; i < 10; i++) {
+            sequences[i] = history.nextSequence();
+            history.append(FrameEncoder.encodeText("m" + i));
+        }
+        // m6..m9 are kept
+
+        assertEquals(List.of("m6", "m7", "m8", "m9"), decode(history.replayBefore(history.nextSequence())));
+        assertEquals(List.of("m6", "m7", "m8", "m9"), decode(history.replayBefore(Long.MAX_VALUE)));
+        assertEquals(List.of("m6", "m7", "m8"), decode(history.replayBefore(sequences[9])));
+        assertEquals(List.of("m6"), decode(history.replayBefore(sequences[7])));
+        assertNull(history.replayBefore(sequences[6]));
+        assertNull(history.replayBefore(sequences[2])); // Evicted, not replayed
+    }
+
+    @Test
+    void keepsFrameExactlyAsLargeAsRing() throws Exception {
+        ByteBuffer frame = FrameEncoder.encodeText("x".repeat(94));
+        MessageHistory history = new MessageHistory(10, frame.remaining());
+        history.append(FrameEncoder.encodeText("before"));
+        history.append(frame);
+
+        assertEquals(List.of("x".repeat(94)), decode(history.replayBefore(history.nextSequence())));
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    void dropsFrameLargerThanRing() throws Exception {
+        MessageHistory history = new MessageHistory(10, 32);
+        history.append(FrameEncoder.encodeText("kept"));
+        long next = history.nextSequence();
+        history.append(FrameEncoder.encodeText("x".repeat(64)));
+
+        assertEquals(next, history.nextSequence());
+        assertEquals(List.of("kept"), decode(history.replayBefore(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void emptyHistoryReplaysNothing() {
+        assertNull(new MessageHistory(10, 1024).replayBefore(Long.MAX_VALUE));
+    }
+
+    @Test
+    void retiredHistoryKeepsNothing() throws Exception {
+        MessageHistory history = new MessageHistory(10, 1024);
+        history.append(FrameEncoder.encodeText("old room"));
+        MessageHistory reused = new MessageHistory(10, history.retire());
+        reused.append(FrameEncoder.encodeText("new room"));
+
+        history.append(FrameEncoder.encodeText("late"));
+        assertNull(history.replayBefore(Long.MAX_VALUE));
+        assertEquals(List.of("new room"), decode(reused.replayBefore(Long.MAX_VALUE)));
+    }
+
+    private static List<String> decode(ByteBuffer replay) throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(replay);
+        List<String> texts = new ArrayList<>();
+        Frame frame;
+        while ((frame = decoder.next()) != null) {
+            texts.add(frame.text());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,168 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageJournalTest {
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 2;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRoomSinceId() throws Exception {
+        MessageJournal journal = open(4);
+        journal.append("lobby", "a");
+        journal.append("other", "b");
+        journal.append("lobby", "c");
+        journal.close();
+
+        assertEquals(List.of("1:a", "3:c"), replay(journal, 0, "lobby"));
+        assertEquals(List.of("3:c"), replay(journal, 1, "lobby"));
+        assertEquals(List.of(), replay(journal, 3, "lobby"));
+    }
+
+    @Test
+    void appendReturnsJournaledId() throws Exception {
+        MessageJournal journal = open(4);
+        assertEquals(1, journal.append("lobby", "a"));
+        assertEquals(2, journal.append("other", "b"));
+        long id = journal.append("lobby", "c");
+        journal.close();
+
+        assertEquals(List.of(id + ":c"), replay(journal, id - 1, "lobby"));
+    }
+
+    @Test
+    void recoversAfterPartialRecord() throws Exception {
+        MessageJournal journal = open(4);
+        journal.append("lobby", "a");
+        journal.append("lobby", "b");
+        journal.close();
+
+        // A crash in the middle of the next record: its body is on disk, its length (written last) is not
+        int end = 2 * (RECORD_HEADER + "lobby".length() + 1);
+        try (FileChannel channel = FileChannel.open(onlySegment(), StandardOpenOption.WRITE)) {
+            ByteBuffer body = ByteBuffer.allocate(RECORD_HEADER - 4 + 5 + 4);
+            body.putLong(3).putLong(System.currentTimeMillis()).putShort((short) 5)
+                    .put("lobby".getBytes(StandardCharsets.UTF_8)).put("torn".getBytes(StandardCharsets.UTF_8)).flip();
+            channel.write(body, end + 4);
+        }
+
+        MessageJournal reopened = open(4);
+        assertEquals(List.of("1:a", "2:b"), replay(reopened, 0, "lobby"));
+
+        // The next record gets the next id and overwrites the torn one
+        reopened.append("lobby", "c");
+        reopened.close();
+        assertEquals(List.of("1:a", "2:b", "3:c"), replay(reopened, 0, "lobby"));
+        assertEquals(List.of("1:a", "2:b", "3:c"), replay(open(4), 0, "lobby"));
+    }
+
+    @Test
+    void rollsOverSegmentsAndDeletesOldest() throws Exception {
+        String text = "x".repeat(10_000); // About 100 records per segment
+        MessageJournal journal = open(2);
+        for (int i = 0; i < 300; i++) {
+            journal.append("lobby", text);
+        }
+        journal.close();
+
+        assertEquals(2, segmentCount());
+        List<Long> ids = replayIds(journal, 0);
+        assertTrue(ids.get(0) > 1, "oldest segment should have been deleted");
+        assertEquals(300L, (long) ids.get(ids.size() - 1));
+        for (int i = 1; i < ids.size(); i++) {
+            assertEquals(ids.get(i - 1) + 1, (long) ids.get(i), "ids continue across segments");
+        }
+
+        // Reopening rebuilds both segments and their index, and continues numbering
+        MessageJournal reopened = open(2);
+        assertEquals(ids, replayIds(reopened, 0));
+        assertEquals(ids.subList(ids.size() - 10, ids.size()), replayIds(reopened, 290));
+        reopened.append("lobby", "after");
+        reopened.close();
+        List<Long> after = replayIds(reopened, 300);
+        assertEquals(List.of(301L), after);
+    }
+
+    @Test
+    void failedWriteIsNotRetriedUnderNewIds() throws Exception {
+        Path journalDirectory = directory.resolve("journal");
+        MessageJournal journal = new MessageJournal(journalDirectory, SEGMENT_BYTES, 4, FsyncPolicy.NEVER, 0);
+        Files.delete(journalDirectory); // The first segment can't be created now
+
+        journal.append("lobby", "a");
+        journal.append("lobby", "b");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journal.droppedRecords() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, journal.droppedRecords());
+
+        Files.createDirectories(journalDirectory);
+        journal.append("lobby", "c");
+        journal.close();
+
+        assertEquals(List.of("3:c"), replay(journal, 0, "lobby")); // 1 and 2 were handed out, then lost
+    }
+
+    @Test
+    void appendAfterCloseIsDropped() throws Exception {
+        MessageJournal journal = open(4);
+        journal.append("lobby", "a");
+        journal.close();
+
+        assertEquals(0, journal.append("lobby", "late"));
+        assertEquals(1, journal.droppedRecords());
+        assertEquals(List.of("1:a"), replay(journal, 0, "lobby"));
+    }
+
+    @Test
+    void rejectsIntervalThatWouldSpin() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MessageJournal(directory, SEGMENT_BYTES, 4, FsyncPolicy.INTERVAL, 0));
+    }
+
+    private MessageJournal open(int maxSegments) throws Exception {
+        return new MessageJournal(directory, SEGMENT_BYTES, maxSegments, FsyncPolicy.NEVER, 0);
+    }
+
+    private static List<String> replay(MessageJournal journal, long afterId, String room) {
+        List<String> records = new ArrayList<>();
+        journal.replaySince(afterId, room, Integer.MAX_VALUE, (id, timestampMillis, r, text) -> records.add(id + ":" + text));
+        return records;
+    }
+
+    private static List<Long> replayIds(MessageJournal journal, long afterId) {
+        List<Long> ids = new ArrayList<>();
+        journal.replaySince(afterId, "lobby", Integer.MAX_VALUE, (id, timestampMillis, room, text) -> ids.add(id));
+        return ids;
+    }
+
+    private Path onlySegment() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.findFirst().orElseThrow();
+        }
+    }
+
+    private long segmentCount() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
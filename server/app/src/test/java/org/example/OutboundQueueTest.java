@@ -0,0 +1,76 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+
+    @Test
+    void dropOldestKeepsControlFrames() {
+        OutboundQueue queue = new OutboundQueue(3, SlowConsumerPolicy.DROP_OLDEST);
+        queue.offer(welcome());
+        queue.offer(FrameEncoder.encodeText("m0"));
+        queue.offer(FrameEncoder.encodeText("m1"));
+        queue.offer(FrameEncoder.encodeText("m2"));
+        queue.offer(ping());
+        queue.offer(FrameEncoder.encodeText("m3"));
+
+        assertEquals(List.of("WELCOME", "PING", "m3"), drain(queue));
+        assertEquals(3, queue.dropped());
+    }
+
+    @Test
+    void dropOldestFallsBackToControlFrames() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DROP_OLDEST);
+        queue.offer(welcome());
+        queue.offer(ping());
+        queue.offer(ping());
+
+        assertEquals(List.of("PING", "PING"), drain(queue));
+    }
+
+    @Test
+    void coalesceQueuesControlFrames() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.COALESCE);
+        queue.offer(FrameEncoder.encodeText("m0"));
+        queue.offer(FrameEncoder.encodeText("m1"));
+        queue.offer(FrameEncoder.encodeText("m2")); // Skipped
+        queue.offer(ping()); // Takes m0's place
+
+        List<String> frames = drain(queue);
+        assertEquals(List.of("m1", "PING"), frames.subList(0, 2));
+        assertTrue(frames.get(2).startsWith("[2 messages skipped"), frames.get(2));
+        assertNull(queue.poll());
+    }
+
+    private static ByteBuffer welcome() {
+        return FrameEncoder.encode(Frame.TYPE_WELCOME, (byte) 0, new byte[0]);
+    }
+
+    private static ByteBuffer ping() {
+        return FrameEncoder.encodeShared(Frame.TYPE_PING, (byte) 0, new byte[0]).duplicate();
+    }
+
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> frames = new ArrayList<>();
+        ByteBuffer frame;
+        while ((frame = queue.poll()) != null) {
+            byte type = frame.get(frame.position() + 4);
+            frames.add(switch (type) {
+                case Frame.TYPE_TEXT -> new String(frame.array(), frame.position() + Frame.HEADER_LENGTH,
+                        frame.remaining() - Frame.HEADER_LENGTH, StandardCharsets.UTF_8);
+                case Frame.TYPE_WELCOME -> "WELCOME";
+                case Frame.TYPE_PING -> "PING";
+                default -> "type " + type;
+            });
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.lang.reflect.Proxy;
+import org.junit.jupiter.api.Test;
+
+class RoomRegistryTest {
+
+    @Test
+    void keepsHistoryAfterRoomEmpties() throws Exception {
+        RoomRegistry rooms = new RoomRegistry(10, 1024, 4);
+        Connection alice = connection();
+        Room room = rooms.join("lobby", alice);
+        MessageHistory history = room.getHistory();
+        history.append(FrameEncoder.encodeText("hello"));
+        rooms.leave(room, alice);
+        assertNull(rooms.get("lobby"));
+
+        Room again = rooms.join("lobby", alice);
+        assertNotSame(room, again);
+        assertSame(history, again.getHistory());
+        assertNotNull(history.replayBefore(history.nextSequence()));
+    }
+
+    @Test
+    void reusesRingOfRoomEmptiedLongestAgo() throws Exception {
+        RoomRegistry rooms = new RoomRegistry(10, 1024, 2);
+        Connection alice = connection();
+        Room first = rooms.join("first", alice);
+        Room second = rooms.join("second", alice);
+        MessageHistory firstHistory = first.getHistory();
+        MessageHistory secondHistory = second.getHistory();
+        firstHistory.append(FrameEncoder.encodeText("in first"));
+        rooms.leave(first, alice);
+        rooms.leave(second, alice);
+
+        Room third = rooms.join("third", alice);
+        assertNotNull(third.getHistory());
+        assertNull(firstHistory.replayBefore(Long.MAX_VALUE)); // Its ring went to the third room
+        assertNull(third.getHistory().replayBefore(Long.MAX_VALUE));
+        assertSame(secondHistory, rooms.join("second", alice).getHistory());
+    }
+
+    @Test
+    void occupiedRoomsKeepTheirRings() {
+        RoomRegistry rooms = new RoomRegistry(10, 1024, 1);
+        Connection alice = connection();
+        Room first = rooms.join("first", alice);
+
+        assertNull(rooms.join("second", alice).getHistory());
+        assertSame(first.getHistory(), rooms.get("first").getHistory());
+    }
+
+    @Test
+    void noHistoryWhenTurnedOff() {
+        assertNull(new RoomRegistry(0, 1024, 4).join("lobby", connection()).getHistory());
+    }
+
+    // Rooms only keep their members in a set, so identity is all a connection needs here
+    private static Connection connection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * JMH benchmarks for the server's hot paths: AEAD, frame parsing and broadcast fan-out.
+ *
+ * Run all of them:  ./gradlew :jmh:jmh
+ * Pick and tune:    ./gradlew :jmh:jmh -PjmhArgs="AeadBenchmark -f 1 -wi 2 -i 3"
+ *
+ * Every run profiles allocations (-prof gc) and writes machine-readable results to
+ * jmh/build/results/jmh/results.json; keep that file per commit and diff two of them to compare.
+ *
+ * The older plain-main benchmarks live here too, so none of them ship in the app's jar:
+ *   ./gradlew :jmh:fanOutBench
+ *   ./gradlew :jmh:cryptoBench
+ *   ./gradlew :jmh:compressionBench
+ */
+
+plugins {
+    java
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    // The benchmarks live in org.example too, so they can reach the app's package-private classes
+    implementation(project(":app"))
+    implementation(libs.jmh.core)
+    annotationProcessor(libs.jmh.generator.annprocess)
+}
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(24)
+    }
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks with the GC profiler and writes JSON results."
+    group = "verification"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.openjdk.jmh.Main"
+    val resultsFile = jmhResults.get().asFile
+    val extraArgs = providers.gradleProperty("jmhArgs").orNull?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+    args(extraArgs + listOf("-rf", "json", "-rff", resultsFile.absolutePath, "-prof", "gc"))
+    doFirst {
+        resultsFile.parentFile.mkdirs()
+    }
+}
+
+tasks.register<JavaExec>("fanOutBench") {
+    description = "Prints bytes allocated per broadcast for different room sizes."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.example.FanOutAllocationBench"
+}
+
+tasks.register<JavaExec>("cryptoBench") {
+    description = "Prints plaintext and encrypted message throughput for different room sizes."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.example.CryptoThroughputBench"
+}
+
+tasks.register<JavaExec>("compressionBench") {
+    description = "Prints bytes on the wire and CPU time per message, plain versus compressed."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.example.CompressionBench"
+}
@@ -0,0 +1,85 @@
+package org.example;
+
+import ai.gemini.SimpleAeadService;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// SimpleAeadService on typical chat message sizes, through the array, Base64 and buffer APIs
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AeadBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int messageBytes;
+
+    private SimpleAeadService aead;
+    private byte[] message;
+    private byte[] encrypted;
+    private ByteBuffer src;
+    private ByteBuffer dst;
+    private ByteBuffer encryptedSrc;
+
+    @Setup
+    public void setup() throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        aead = new SimpleAeadService(key);
+
+        message = new byte[messageBytes];
+        random.nextBytes(message);
+        encrypted = aead.encrypt(message);
+
+        src = ByteBuffer.allocateDirect(messageBytes).put(message).flip();
+        dst = ByteBuffer.allocateDirect(SimpleAeadService.encryptedLength(messageBytes));
+        encryptedSrc = ByteBuffer.allocateDirect(encrypted.length).put(encrypted).flip();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return aead.encrypt(message);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return aead.decrypt(encrypted);
+    }
+
+    @Benchmark
+    public String encryptToBase64() throws Exception {
+        return aead.encryptToBase64(message);
+    }
+
+    // The allocation-free path the server's CryptoStage uses
+    @Benchmark
+    public int encryptIntoBuffer() throws Exception {
+        src.rewind();
+        dst.clear();
+        return aead.encrypt(src, dst);
+    }
+
+    @Benchmark
+    public int decryptIntoBuffer() throws Exception {
+        encryptedSrc.rewind();
+        dst.clear();
+        return aead.decrypt(encryptedSrc, dst);
+    }
+}
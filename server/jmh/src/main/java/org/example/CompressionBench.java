@@ -0,0 +1,123 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+/**
+ * Compares plain and compressed mode on a synthetic chat stream, as one client would receive it:
+ * bytes on the wire per message over the life of the connection, and CPU time per message.
+ *
+ * Run with: ./gradlew :jmh:compressionBench
+ */
+public class CompressionBench {
+    private static final String[] NAMES = {
+            "clever-comet-4k2j9x", "swift-nexus-0q1m8z", "bold-phoenix-7c5v3b", "calm-matrix-9d8f7g", "vivid-orb-2h3j4k"};
+    private static final String[] WORDS = {
+            "hello", "everyone", "how", "is", "the", "room", "doing", "today", "did", "you", "see", "new", "build",
+            "deploy", "went", "fine", "lol", "yes", "no", "thanks", "anyone", "around", "lunch", "meeting", "later"};
+    // Where to print a row: the ratio of messages [previous checkpoint, checkpoint)
+    private static final int[] CHECKPOINTS = {10, 100, 1_000, 10_000};
+    private static final int CPU_MESSAGES = 200_000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws DataFormatException {
+        System.out.println("messages,plainBytesPerMessage,compressedBytesPerMessage,ratio");
+        FrameCompressor compressor = new FrameCompressor();
+        FrameDecompressor decompressor = new FrameDecompressor();
+        Random random = new Random(42);
+        long plainBytes = 0;
+        long compressedBytes = 0;
+        int from = 0;
+        for (int checkpoint : CHECKPOINTS) {
+            for (int i = from; i < checkpoint; i++) {
+                ByteBuffer frame = FrameEncoder.encodeText(nextMessage(random, i));
+                plainBytes += frame.remaining();
+                ByteBuffer compressed = compressor.compress(frame);
+                compressedBytes += compressed.remaining();
+                inflate(decompressor, compressed); // Keeps us honest: the stream must round-trip
+            }
+            int count = checkpoint - from;
+            System.out.printf("%d-%d,%.1f,%.1f,%.2f%n", from + 1, checkpoint,
+                    (double) plainBytes / count, (double) compressedBytes / count, (double) plainBytes / compressedBytes);
+            plainBytes = 0;
+            compressedBytes = 0;
+            from = checkpoint;
+        }
+        compressor.end();
+        decompressor.end();
+
+        // CPU cost on a fresh, warmed up connection
+        measureCpu(CPU_MESSAGES / 10);
+        long[] nanos = measureCpu(CPU_MESSAGES);
+        System.out.println();
+        System.out.println("plainEncodeNanosPerMessage,compressNanosPerMessage,inflateNanosPerMessage");
+        System.out.printf("%d,%d,%d%n", nanos[0] / CPU_MESSAGES, nanos[1] / CPU_MESSAGES, nanos[2] / CPU_MESSAGES);
+    }
+
+    // Returns CPU nanoseconds spent encoding, compressing and inflating that many messages
+    private static long[] measureCpu(int messages) throws DataFormatException {
+        FrameCompressor compressor = new FrameCompressor();
+        FrameDecompressor decompressor = new FrameDecompressor();
+        Random random = new Random(7);
+        String[] texts = new String[1024];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = nextMessage(random, i);
+        }
+        ByteBuffer[] frames = new ByteBuffer[texts.length];
+        ByteBuffer[] compressed = new ByteBuffer[texts.length];
+
+        long encode = 0;
+        long compress = 0;
+        long inflate = 0;
+        for (int done = 0; done < messages; done += texts.length) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            for (int i = 0; i < texts.length; i++) {
+                frames[i] = FrameEncoder.encodeText(texts[i]);
+            }
+            long encoded = THREADS.getCurrentThreadCpuTime();
+            for (int i = 0; i < texts.length; i++) {
+                // compress() reuses its buffer, so keep a copy for the inflate pass
+                ByteBuffer out = compressor.compress(frames[i]);
+                compressed[i] = ByteBuffer.allocate(out.remaining()).put(out).flip();
+            }
+            long compressedAt = THREADS.getCurrentThreadCpuTime();
+            for (int i = 0; i < texts.length; i++) {
+                inflate(decompressor, compressed[i]);
+            }
+            long inflated = THREADS.getCurrentThreadCpuTime();
+            encode += encoded - start;
+            compress += compressedAt - encoded;
+            inflate += inflated - compressedAt;
+        }
+        compressor.end();
+        decompressor.end();
+        return new long[] {encode, compress, inflate};
+    }
+
+    private static String inflate(FrameDecompressor decompressor, ByteBuffer frame) throws DataFormatException {
+        int length = frame.getInt(frame.position());
+        ByteBuffer payload = frame.slice(frame.position() + Frame.HEADER_LENGTH, length);
+        return decompressor.inflateText(payload);
+    }
+
+    // Mostly chat lines, with the occasional join/leave notice like a real room
+    private static String nextMessage(Random random, int index) {
+        String name = NAMES[random.nextInt(NAMES.length)];
+        if (index % 20 == 0) {
+            return "Client " + name + " has dabbed me up!";
+        }
+        if (index % 20 == 10) {
+            return name + " joined the room";
+        }
+        StringBuilder sb = new StringBuilder(name).append(": ");
+        int words = 3 + random.nextInt(10);
+        for (int i = 0; i < words; i++) {
+            sb.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package org.example;
+
+import ai.gemini.SimpleAeadService;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many chat messages per second one thread can push through the server's message path,
+ * plaintext versus encrypted, as a function of room size.
+ *
+ * Plaintext: decode the incoming frame, encode the broadcast once, fan it out.
+ * Encrypted: decrypt the incoming frame, encode the broadcast once, encrypt it once, fan it out.
+ * Every member of the room is an encrypted client in the second case, which is the worst case.
+ *
+ * Run with: ./gradlew :jmh:cryptoBench
+ */
+public class CryptoThroughputBench {
+    private static final String MESSAGE = "hello everyone, how is the room doing today?";
+    private static final int[] ROOM_SIZES = {1, 10, 100, 1000};
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASURED_NANOS = 3_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        CryptoStage crypto = new CryptoStage(key, 1);
+
+        // What a client with -k sends, and what a client without it sends
+        ByteBuffer encryptedPayload = ByteBuffer.wrap(new SimpleAeadService(key).encrypt(MESSAGE.getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer plainPayload = ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.UTF_8));
+
+        System.out.println("roomSize,plaintextMessagesPerSecond,encryptedMessagesPerSecond,slowdown");
+        for (int roomSize : ROOM_SIZES) {
+            List<Connection> plainRoom = room(roomSize, false);
+            List<Connection> encryptedRoom = room(roomSize, true);
+
+            run(plainRoom, plainPayload, null, WARMUP_NANOS);
+            double plaintext = run(plainRoom, plainPayload, null, MEASURED_NANOS);
+            run(encryptedRoom, encryptedPayload, crypto, WARMUP_NANOS);
+            double encrypted = run(encryptedRoom, encryptedPayload, crypto, MEASURED_NANOS);
+
+            System.out.printf("%d,%.0f,%.0f,%.2f%n", roomSize, plaintext, encrypted, plaintext / encrypted);
+        }
+    }
+
+    private static List<Connection> room(int size, boolean encrypted) {
+        List<Connection> room = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Connection connection = new FanOutAllocationBench.BenchConnection();
+            connection.setEncrypted(encrypted);
+            room.add(connection);
+        }
+        return room;
+    }
+
+    // Returns messages per second
+    private static double run(List<Connection> room, ByteBuffer payload, CryptoStage crypto, long nanos) throws Exception {
+        ByteBuffer[] drain = new ByteBuffer[64];
+        long messages = 0;
+        long start = System.nanoTime();
+        long deadline = start + nanos;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 100; i++) {
+                String text = crypto != null
+                        ? crypto.decryptText(payload)
+                        : new Frame(Frame.TYPE_TEXT, (byte) 0, payload.duplicate()).text();
+                ChatSession.fanOut(room, FrameEncoder.encodeShared("bench: " + text), crypto);
+                // Stand-in for the writers, so the queues stay short
+                for (Connection client : room) {
+                    while (client.getOutboundQueue().pollBatch(drain) == drain.length) {
+                        // Keep draining
+                    }
+                }
+            }
+            messages += 100;
+        }
+        return messages * 1e9 / (System.nanoTime() - start);
+    }
+}
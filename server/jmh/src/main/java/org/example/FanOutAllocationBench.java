@@ -0,0 +1,110 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many bytes the broadcast path allocates per message as a function of room size,
+ * comparing encoding the frame once per recipient with encoding it once for the whole room.
+ *
+ * Run with: ./gradlew :jmh:fanOutBench
+ */
+public class FanOutAllocationBench {
+    private static final String MESSAGE = "clever-comet-4k2j9x0q1m8z7c5v: hello everyone, how is the room doing today?";
+    private static final int[] ROOM_SIZES = {1, 10, 100, 1000};
+    private static final int WARMUP_BROADCASTS = 20_000;
+    private static final int MEASURED_BROADCASTS = 20_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        System.out.println("roomSize,perRecipientBytesPerBroadcast,encodeOnceBytesPerBroadcast");
+        for (int roomSize : ROOM_SIZES) {
+            List<Connection> room = new ArrayList<>();
+            for (int i = 0; i < roomSize; i++) {
+                room.add(new BenchConnection());
+            }
+            // Fewer broadcasts for big rooms so every row takes about the same time
+            int broadcasts = Math.max(200, MEASURED_BROADCASTS / roomSize);
+
+            measure(room, Math.max(200, WARMUP_BROADCASTS / roomSize), false);
+            double perRecipient = measure(room, broadcasts, false);
+            measure(room, Math.max(200, WARMUP_BROADCASTS / roomSize), true);
+            double encodeOnce = measure(room, broadcasts, true);
+
+            System.out.printf("%d,%.0f,%.0f%n", roomSize, perRecipient, encodeOnce);
+        }
+    }
+
+    // Returns the average bytes allocated per broadcast
+    private static double measure(List<Connection> room, int broadcasts, boolean encodeOnce) {
+        ByteBuffer[] drain = new ByteBuffer[64];
+        long before = THREADS.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < broadcasts; i++) {
+            if (encodeOnce) {
+                ChatSession.fanOut(room, FrameEncoder.encodeShared(MESSAGE));
+            } else {
+                // What broadcastMessage used to do: encode again for every recipient
+                for (Connection client : room) {
+                    client.send(FrameEncoder.encodeText(MESSAGE));
+                }
+            }
+            // Stand-in for the writers, so the queues stay short
+            for (Connection client : room) {
+                while (client.getOutboundQueue().pollBatch(drain) == drain.length) {
+                    // Keep draining
+                }
+            }
+        }
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - before;
+        return (double) allocated / broadcasts;
+    }
+
+    // A connection that only queues, like the real ones do on the sender's thread. Shared with CryptoThroughputBench.
+    static class BenchConnection implements Connection {
+        private final OutboundQueue outboundQueue = new OutboundQueue(1024, SlowConsumerPolicy.DROP_OLDEST);
+        private boolean encrypted = false;
+
+        @Override
+        public String getAddress() {
+            return "bench";
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            outboundQueue.offer(frame);
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outboundQueue;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        @Override
+        public void setEncrypted(boolean encrypted) {
+            this.encrypted = encrypted;
+        }
+
+        @Override
+        public void enableCompression() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            outboundQueue.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One broadcast to a room of N real loopback connections: encode once, ChatSession.fanOut() into every
+// outbound queue, then drain each queue with a gathering write the way the connection writers do.
+// A background thread reads and discards everything on the client side. Scores are broadcasts per second.
+// broadcastWithMetrics does the same plus the timing and ServerMetrics recording ChatSession adds to every
+// broadcast; compare the two to see what the instrumentation costs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final String MESSAGE = "clever-comet-4k2j9x0q1m8z7c5v: hello everyone, how is the room doing today?";
+
+    @Param({"1", "10", "100"})
+    int recipients;
+
+    private ServerSocketChannel listener;
+    private final List<Connection> room = new ArrayList<>();
+    private final List<SocketChannel> clients = new ArrayList<>();
+    private Thread sink;
+    private final ByteBuffer[] batch = new ByteBuffer[64];
+    private final ServerMetrics metrics = new ChatHub(new ServerConfig()).getMetrics();
+
+    @Setup
+    public void setup() throws IOException {
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Selector selector = Selector.open();
+        for (int i = 0; i < recipients; i++) {
+            SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ);
+            clients.add(client);
+            room.add(new LoopbackConnection(listener.accept()));
+        }
+        sink = new Thread(() -> discard(selector), "fan-out-sink");
+        sink.setDaemon(true);
+        sink.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.interrupt();
+        for (Connection connection : room) {
+            connection.close();
+        }
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        listener.close();
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException {
+        ChatSession.fanOut(room, FrameEncoder.encodeShared(MESSAGE));
+        for (Connection connection : room) {
+            ((LoopbackConnection) connection).drain(batch);
+        }
+    }
+
+    @Benchmark
+    public void broadcastWithMetrics() throws IOException {
+        long start = System.nanoTime();
+        int sent = ChatSession.fanOut(room, FrameEncoder.encodeShared(MESSAGE));
+        metrics.onBroadcast(sent, System.nanoTime() - start);
+        for (Connection connection : room) {
+            ((LoopbackConnection) connection).drain(batch);
+        }
+    }
+
+    private static void discard(Selector selector) {
+        ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+        try (selector) {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    scratch.clear();
+                    if (((SocketChannel) key.channel()).read(scratch) == -1) {
+                        key.cancel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // Channels closed during tear down
+        }
+    }
+
+    // The server side of one loopback connection: queues like the real ones and writes when drained
+    private static class LoopbackConnection implements Connection {
+        private final SocketChannel channel;
+        private final OutboundQueue outboundQueue = new OutboundQueue(1024, SlowConsumerPolicy.DROP_OLDEST);
+
+        LoopbackConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void drain(ByteBuffer[] batch) throws IOException {
+            int count;
+            while ((count = outboundQueue.pollBatch(batch)) > 0) {
+                ByteBuffer last = batch[count - 1];
+                while (last.hasRemaining()) {
+                    channel.write(batch, 0, count);
+                }
+                Arrays.fill(batch, 0, count, null);
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return "loopback";
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            outboundQueue.offer(frame);
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outboundQueue;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        @Override
+        public void setEncrypted(boolean encrypted) {
+        }
+
+        @Override
+        public void enableCompression() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            outboundQueue.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing loopback channel: " + e.getMessage());
+            }
+        }
+    }
+}
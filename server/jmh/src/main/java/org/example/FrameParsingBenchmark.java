@@ -0,0 +1,60 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// What a reader does with every chunk it reads: frame it with FrameDecoder and decode the text, as in
+// Server.ClientHandler.run() and ChatSession.onFrame(). Scores are per message.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameParsingBenchmark {
+    private static final int MESSAGES_PER_READ = 32;
+
+    @Param({"32", "512"})
+    int messageBytes;
+
+    private FrameDecoder decoder;
+    private ByteBuffer read; // One socket read's worth of back-to-back frames
+
+    @Setup
+    public void setup() {
+        String message = "x".repeat(messageBytes);
+        read = ByteBuffer.allocate(MESSAGES_PER_READ * (Frame.HEADER_LENGTH + messageBytes));
+        for (int i = 0; i < MESSAGES_PER_READ; i++) {
+            read.put(FrameEncoder.encodeText(message));
+        }
+        read.flip();
+        // Room for the whole read, like a reader whose buffer fits what one read() returns, so every
+        // invocation measures parsing rather than the buffer growing
+        decoder = new FrameDecoder(read.capacity());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_READ)
+    public void parse(Blackhole blackhole) throws ProtocolException {
+        decoder.feed(read.duplicate());
+        Frame frame;
+        while ((frame = decoder.next()) != null) {
+            blackhole.consume(frame.text());
+        }
+    }
+}
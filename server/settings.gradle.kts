@@ -12,3 +12,4 @@ plugins {
 
 rootProject.name = "server"
 include("app")
+include("jmh") // JMH benchmarks for the app's hot paths